@@ -0,0 +1,285 @@
+package datameer.webdriver.goodies;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.runners.model.Statement;
+
+/**
+ * Timeouts for the tests learned from their previous durations. The durations of the successful
+ * runs of each test with each driver are stored between runs. Once enough of them are known,
+ * a test fails with an {@link AdaptiveTimeoutException} when it takes longer than the 99th percentile
+ * of its durations multiplied by a factor, but never less than a floor.
+ * Tests with an explicit &#064;Test(timeout=...) keep it.
+ * <p>
+ * Settings in tests.properties:
+ * <pre>
+ * adaptiveTimeouts.enabled=true
+ * adaptiveTimeouts.file=test-durations.properties
+ * adaptiveTimeouts.factor=3
+ * # milliseconds
+ * adaptiveTimeouts.floor=30000
+ * # durations needed before a timeout is applied, and durations kept per test
+ * adaptiveTimeouts.minSamples=5
+ * adaptiveTimeouts.maxSamples=50
+ * </pre>
+ * @version $Revision:  $
+ */
+public class AdaptiveTimeouts {
+    private final File _file;
+    private final double _factor;
+    private final long _floor;
+    private final int _minSamples;
+    private final int _maxSamples;
+    private final Map<String, LinkedList<Long>> _durations = new HashMap<String, LinkedList<Long>>();
+    private final List<String> _timedOut = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * Thrown when a test exceeds its learned timeout. Distinct from assertion failures
+     * and from the timeouts of &#064;Test(timeout=...) to allow tuning the settings.
+     */
+    public static class AdaptiveTimeoutException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        AdaptiveTimeoutException(final String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Builds the timeouts configured in tests.properties.
+     * @return <code>null</code> if adaptive timeouts are disabled
+     */
+    static AdaptiveTimeouts fromConfiguration() {
+        final TestsConfiguration config = TestsConfiguration.getInstance();
+        if (!config.getBooleanProperty("adaptiveTimeouts.enabled", false)) {
+            return null;
+        }
+        return new AdaptiveTimeouts(new File(config.getProperty("adaptiveTimeouts.file", "test-durations.properties")),
+            Double.parseDouble(config.getProperty("adaptiveTimeouts.factor", "3")),
+            config.getIntProperty("adaptiveTimeouts.floor", 30000),
+            config.getIntProperty("adaptiveTimeouts.minSamples", 5),
+            config.getIntProperty("adaptiveTimeouts.maxSamples", 50));
+    }
+
+    /**
+     * @param file the file storing the durations between runs
+     * @param factor the factor applied to the 99th percentile
+     * @param floor the minimal timeout in milliseconds
+     * @param minSamples the number of durations needed before applying a timeout
+     * @param maxSamples the number of durations kept per test
+     */
+    public AdaptiveTimeouts(final File file, final double factor, final long floor, final int minSamples, final int maxSamples) {
+        _file = file;
+        _factor = factor;
+        _floor = floor;
+        _minSamples = Math.max(1, minSamples);
+        _maxSamples = Math.max(_minSamples, maxSamples);
+        load();
+    }
+
+    private void load() {
+        if (!_file.isFile()) {
+            return;
+        }
+        final Properties props = new Properties();
+        InputStream is = null;
+        try {
+            is = new FileInputStream(_file);
+            props.load(is);
+        }
+        catch (final IOException e) {
+            System.err.println("Error reading test durations from " + _file + ":");
+            e.printStackTrace(System.err);
+            return;
+        }
+        finally {
+            IOUtils.closeQuietly(is);
+        }
+
+        for (final Entry<Object, Object> entry : props.entrySet()) {
+            final LinkedList<Long> durations = new LinkedList<Long>();
+            for (final String duration : entry.getValue().toString().split(",")) {
+                try {
+                    durations.add(Long.valueOf(duration.trim()));
+                }
+                catch (final NumberFormatException e) {
+                    // ignore the damaged value
+                }
+            }
+            _durations.put(entry.getKey().toString(), durations);
+        }
+    }
+
+    /**
+     * Writes the durations to the file, for the next runs.
+     */
+    public synchronized void save() {
+        final Properties props = new Properties();
+        for (final Entry<String, LinkedList<Long>> entry : _durations.entrySet()) {
+            final StringBuilder sb = new StringBuilder();
+            for (final Long duration : entry.getValue()) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(duration);
+            }
+            props.setProperty(entry.getKey(), sb.toString());
+        }
+
+        // write first to another file to not lose the history if interrupted
+        final File tmpFile = new File(_file.getAbsolutePath() + ".tmp");
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(tmpFile);
+            props.store(os, "Durations in ms of the successful tests, used by " + AdaptiveTimeouts.class.getName());
+        }
+        catch (final IOException e) {
+            System.err.println("Error writing test durations to " + tmpFile + ":");
+            e.printStackTrace(System.err);
+            return;
+        }
+        finally {
+            IOUtils.closeQuietly(os);
+        }
+        _file.delete();
+        if (!tmpFile.renameTo(_file)) {
+            System.err.println("Can't rename " + tmpFile + " to " + _file);
+        }
+    }
+
+    /**
+     * Gets the timeout learned for a test.
+     * @param key identifies the test and the driver
+     * @return 0 if not enough durations are known yet
+     */
+    public synchronized long getTimeout(final String key) {
+        final List<Long> durations = _durations.get(key);
+        if (durations == null || durations.size() < _minSamples) {
+            return 0;
+        }
+        final long[] sorted = new long[durations.size()];
+        int i = 0;
+        for (final Long duration : durations) {
+            sorted[i++] = duration;
+        }
+        Arrays.sort(sorted);
+        final long p99 = sorted[(int) Math.ceil(sorted.length * 0.99) - 1];
+        return Math.max(_floor, Math.round(p99 * _factor));
+    }
+
+    /**
+     * Records the duration of a successful test.
+     * @param key identifies the test and the driver
+     * @param millis the duration
+     */
+    public synchronized void record(final String key, final long millis) {
+        LinkedList<Long> durations = _durations.get(key);
+        if (durations == null) {
+            durations = new LinkedList<Long>();
+            _durations.put(key, durations);
+        }
+        durations.add(millis);
+        while (durations.size() > _maxSamples) {
+            durations.removeFirst();
+        }
+    }
+
+    /**
+     * Wraps a test to enforce its learned timeout and record its duration.
+     * @param statement the test
+     * @param key identifies the test and the driver
+     * @return the wrapping statement
+     */
+    Statement wrap(final Statement statement, final String key) {
+        return new StatementWithAdaptiveTimeout(statement, key);
+    }
+
+    /**
+     * Prints the tests that exceeded their learned timeout since the last report.
+     * @param out the stream to print to
+     */
+    public void printReport(final PrintStream out) {
+        synchronized (_timedOut) {
+            if (_timedOut.isEmpty()) {
+                return;
+            }
+            out.println("Adaptive timeouts: " + _timedOut.size() + " test(s) timed out (factor " + _factor
+                + ", floor " + _floor + " ms)");
+            for (final String timedOut : _timedOut) {
+                out.println("  " + timedOut);
+            }
+            _timedOut.clear();
+        }
+    }
+
+    /**
+     * Runs the test in another thread, like JUnit does for &#064;Test(timeout=...).
+     * The drivers are held in inheritable thread locals: the test thread uses the same driver.
+     */
+    private class StatementWithAdaptiveTimeout extends Statement {
+        private final Statement _wrapped;
+        private final String _key;
+
+        StatementWithAdaptiveTimeout(final Statement statement, final String key) {
+            _wrapped = statement;
+            _key = key;
+        }
+
+        @Override
+        public void evaluate() throws Throwable {
+            final long timeout = getTimeout(_key);
+            final long start = System.currentTimeMillis();
+            if (timeout == 0) {
+                // still learning
+                _wrapped.evaluate();
+                record(_key, System.currentTimeMillis() - start);
+                return;
+            }
+
+            final Throwable[] thrown = new Throwable[1];
+            final Thread thread = new Thread(Thread.currentThread().getName() + "-test") {
+                @Override
+                public void run() {
+                    try {
+                        _wrapped.evaluate();
+                    }
+                    catch (final Throwable t) {
+                        thrown[0] = t;
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+            thread.join(timeout);
+            if (thread.isAlive()) {
+                final StackTraceElement[] stackTrace = thread.getStackTrace();
+                thread.interrupt();
+                _timedOut.add(_key + " after " + timeout + " ms");
+                final AdaptiveTimeoutException e = new AdaptiveTimeoutException("test timed out after " + timeout
+                    + " ms (learned from previous runs, see " + _file + ")");
+                e.setStackTrace(stackTrace);
+                throw e;
+            }
+            if (thrown[0] != null) {
+                throw thrown[0];
+            }
+            record(_key, System.currentTimeMillis() - start);
+        }
+    }
+}
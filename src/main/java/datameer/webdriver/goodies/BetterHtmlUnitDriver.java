@@ -11,11 +11,14 @@ import com.gargoylesoftware.htmlunit.WebClient;
  * For example this driver will throw:
  * - on HTTP error codes
  * - on JavaScript errors (caution: this may be real ones or erros due to HtmlUnit uncomplete JS simulation)
+ * When profiling is enabled, it records the requests made by the pages in a {@link PageLoadProfile}.
  * 
  * @author Marc Guillemot
  * @version $Revision:  $
  */
 public class BetterHtmlUnitDriver extends HtmlUnitDriver {
+	// not initialized in declaration: it is set by modifyWebClient which is called from super constructor
+	private PageLoadProfile _profile;
 	
 	public BetterHtmlUnitDriver(final BrowserVersion browserVersion) {
 		super(browserVersion);
@@ -27,6 +30,11 @@ public class BetterHtmlUnitDriver extends HtmlUnitDriver {
 	    client.setJavaScriptEnabled(true);
 	    client.setThrowExceptionOnScriptError(true);
 
+	    if (PageLoadProfile.getProfilingFolder() != null) {
+	        _profile = new PageLoadProfile();
+	        client.setWebConnection(new ProfilingWebConnection(client, _profile));
+	    }
+
 	    return client;
 	}
 	
@@ -34,4 +42,56 @@ public class BetterHtmlUnitDriver extends HtmlUnitDriver {
 	public WebClient getWebClient() {
 	    return super.getWebClient();
 	}
+
+	/**
+	 * Gets the requests recorded since this driver has been created.
+	 * @return <code>null</code> if profiling is disabled
+	 */
+	public PageLoadProfile getProfile() {
+	    return _profile;
+	}
+
+	@Override
+	public void get(final String url) {
+	    if (_profile == null) {
+	        super.get(url);
+	        return;
+	    }
+	    final long start = System.currentTimeMillis();
+	    final long startNanos = System.nanoTime();
+	    try {
+	        super.get(url);
+	    }
+	    finally {
+	        _profile.addPage(url, start, System.nanoTime() - startNanos);
+	    }
+	}
+
+	@Override
+	public Object executeScript(final String script, final Object... args) {
+	    if (_profile == null) {
+	        return super.executeScript(script, args);
+	    }
+	    final long startNanos = System.nanoTime();
+	    try {
+	        return super.executeScript(script, args);
+	    }
+	    finally {
+	        _profile.addScriptTime(System.nanoTime() - startNanos);
+	    }
+	}
+
+	@Override
+	public Object executeAsyncScript(final String script, final Object... args) {
+	    if (_profile == null) {
+	        return super.executeAsyncScript(script, args);
+	    }
+	    final long startNanos = System.nanoTime();
+	    try {
+	        return super.executeAsyncScript(script, args);
+	    }
+	    finally {
+	        _profile.addScriptTime(System.nanoTime() - startNanos);
+	    }
+	}
 }
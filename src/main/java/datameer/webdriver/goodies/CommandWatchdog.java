@@ -0,0 +1,337 @@
+package datameer.webdriver.goodies;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebDriverException;
+
+import datameer.webdriver.goodies.SimpleWebDriverRunner.WebDriverDefinition;
+
+/**
+ * Enforces a deadline on each command sent to a driver. When a command doesn't return in time,
+ * the browser is killed (or its session quit by the {@link DriverReaper} if it can't be killed),
+ * the blocked test thread is interrupted and the command fails with a {@link CommandTimeoutException}.
+ * All following commands on this driver fail immediately.
+ * <p>
+ * The drivers are wrapped in dynamic proxies implementing the same interfaces, therefore tests
+ * casting the driver to its concrete class can't use it. Disabled by default, enabled with:
+ * <pre>
+ * driver.commandTimeout=60000
+ * </pre>
+ * @version $Revision:  $
+ */
+public class CommandWatchdog {
+    private final long _timeoutNanos;
+    private final DriverReaper _driverReaper;
+    // killing the browser or handing it over to the reaper can block, the deadlines of other commands must still be checked
+    private final ExecutorService _killExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("command-watchdog-kill"));
+    private final Set<RunningCommand> _runningCommands = Collections.newSetFromMap(new ConcurrentHashMap<RunningCommand, Boolean>());
+
+    /**
+     * Thrown when a command didn't complete before its deadline.
+     */
+    public static class CommandTimeoutException extends WebDriverException {
+        public CommandTimeoutException(final String message, final Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Builds the watchdog configured in tests.properties.
+     * @param driverReaper the reaper used to quit drivers that can't be killed
+     * @return <code>null</code> if no command timeout is configured
+     */
+    static CommandWatchdog fromConfiguration(final DriverReaper driverReaper) {
+        final int timeout = TestsConfiguration.getInstance().getIntProperty("driver.commandTimeout", 0);
+        return timeout > 0 ? new CommandWatchdog(timeout, driverReaper) : null;
+    }
+
+    public CommandWatchdog(final long timeoutMillis, final DriverReaper driverReaper) {
+        _timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        _driverReaper = driverReaper;
+
+        final long checkInterval = Math.max(10, Math.min(1000, timeoutMillis / 10));
+        final Thread thread = new Thread("command-watchdog") {
+            @Override
+            public void run() {
+                LogCaptureHandler.capture(null);
+                while (true) {
+                    try {
+                        Thread.sleep(checkInterval);
+                    }
+                    catch (final InterruptedException e) {
+                        return;
+                    }
+                    checkDeadlines();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Wraps a driver so that its commands are watched.
+     * @param driver the driver as built by the {@link WebDriverDefinition}
+     * @param definition the definition, used to kill the browser
+     * @return the wrapped driver
+     */
+    public WebDriver watch(final WebDriver driver, final WebDriverDefinition definition) {
+        return (WebDriver) wrap(driver, new WatchedDriver(driver, definition));
+    }
+
+    /**
+     * Gets the driver wrapped by {@link #watch(WebDriver, WebDriverDefinition)}.
+     * @param driver a driver, wrapped or not
+     * @return the original driver
+     */
+    public static WebDriver unwrap(final WebDriver driver) {
+        return (WebDriver) unwrapObject(driver);
+    }
+
+    /**
+     * Indicates if the browser of this driver has been killed because a command hung.
+     * @param driver a driver, wrapped or not
+     * @return <code>true</code> if the driver can't be used anymore
+     */
+    public static boolean isKilled(final WebDriver driver) {
+        final WatchdogHandler handler = getHandler(driver);
+        return handler != null && handler._watchedDriver._killedBy != null;
+    }
+
+    private void checkDeadlines() {
+        final long now = System.nanoTime();
+        for (final RunningCommand command : _runningCommands) {
+            if (now - command._start > _timeoutNanos) {
+                _runningCommands.remove(command);
+                kill(command);
+            }
+        }
+    }
+
+    private void kill(final RunningCommand command) {
+        _killExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                killNow(command);
+            }
+        });
+    }
+
+    private void killNow(final RunningCommand command) {
+        final WatchedDriver watchedDriver = command._watchedDriver;
+        final CommandTimeoutException exception = new CommandTimeoutException("Command " + command._name
+            + " didn't complete within " + TimeUnit.NANOSECONDS.toMillis(_timeoutNanos) + "ms on "
+            + watchedDriver._definition.getName() + ", the browser has been killed", null);
+        // show where the test thread was blocked
+        exception.setStackTrace(command._thread.getStackTrace());
+        synchronized (watchedDriver) {
+            if (watchedDriver._killedBy != null) {
+                return;
+            }
+            watchedDriver._killedBy = exception;
+        }
+
+        boolean killed = false;
+        try {
+            killed = watchedDriver._definition.killBrowser(watchedDriver._driver);
+        }
+        catch (final Exception e) {
+            System.err.println("Error killing the browser:");
+            e.printStackTrace(System.err);
+        }
+        if (!killed) {
+            // closing the session should make the blocked command return
+            _driverReaper.quit(watchedDriver._driver, watchedDriver._definition);
+        }
+        command.interruptIfRunning();
+    }
+
+    private Object wrap(final Object target, final WatchedDriver watchedDriver) {
+        final Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+        for (Class<?> c = target.getClass(); c != null; c = c.getSuperclass()) {
+            for (final Class<?> i : c.getInterfaces()) {
+                if (Modifier.isPublic(i.getModifiers())) {
+                    interfaces.add(i);
+                }
+            }
+        }
+        return Proxy.newProxyInstance(target.getClass().getClassLoader(), interfaces.toArray(new Class<?>[interfaces.size()]),
+            new WatchdogHandler(target, watchedDriver));
+    }
+
+    private static WatchdogHandler getHandler(final Object o) {
+        if (o != null && Proxy.isProxyClass(o.getClass())) {
+            final InvocationHandler handler = Proxy.getInvocationHandler(o);
+            if (handler instanceof WatchdogHandler) {
+                return (WatchdogHandler) handler;
+            }
+        }
+        return null;
+    }
+
+    private static Object unwrapObject(final Object o) {
+        final WatchdogHandler handler = getHandler(o);
+        return handler != null ? handler._target : o;
+    }
+
+    private static Object[] unwrapArgs(final Object[] args) {
+        if (args == null) {
+            return null;
+        }
+        // keep the component type, sendKeys expects a CharSequence[]
+        final Object[] unwrapped = (Object[]) Array.newInstance(args.getClass().getComponentType(), args.length);
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i] instanceof Object[]) {
+                // varargs like in executeScript(String, Object...)
+                unwrapped[i] = unwrapArgs((Object[]) args[i]);
+            }
+            else {
+                unwrapped[i] = unwrapObject(args[i]);
+            }
+        }
+        return unwrapped;
+    }
+
+    /**
+     * The driver shared by the proxies of the driver itself and of the objects it returned.
+     */
+    private static class WatchedDriver {
+        private final WebDriver _driver;
+        private final WebDriverDefinition _definition;
+        private volatile CommandTimeoutException _killedBy;
+
+        WatchedDriver(final WebDriver driver, final WebDriverDefinition definition) {
+            _driver = driver;
+            _definition = definition;
+        }
+    }
+
+    private static class RunningCommand {
+        private final WatchedDriver _watchedDriver;
+        private final String _name;
+        private final Thread _thread = Thread.currentThread();
+        private final long _start = System.nanoTime();
+        private boolean _finished;
+
+        RunningCommand(final WatchedDriver watchedDriver, final String name) {
+            _watchedDriver = watchedDriver;
+            _name = name;
+        }
+
+        /**
+         * Interrupts the test thread, only if it is still blocked in this command:
+         * a late interruption would hit the following code of the test or of the runner.
+         */
+        synchronized void interruptIfRunning() {
+            if (!_finished) {
+                _thread.interrupt();
+            }
+        }
+
+        synchronized void finish() {
+            _finished = true;
+        }
+    }
+
+    private class WatchdogHandler implements InvocationHandler {
+        private final Object _target;
+        private final WatchedDriver _watchedDriver;
+
+        WatchdogHandler(final Object target, final WatchedDriver watchedDriver) {
+            _target = target;
+            _watchedDriver = watchedDriver;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(_target, unwrapArgs(args));
+            }
+            if (_watchedDriver._killedBy != null) {
+                throw new CommandTimeoutException("Browser has been killed after a previous command hung", _watchedDriver._killedBy);
+            }
+
+            final RunningCommand command = new RunningCommand(_watchedDriver, method.getDeclaringClass().getSimpleName() + "." + method.getName());
+            _runningCommands.add(command);
+            Object result = null;
+            Throwable failure = null;
+            try {
+                result = method.invoke(_target, unwrapArgs(args));
+            }
+            catch (final InvocationTargetException e) {
+                failure = e.getCause();
+            }
+            finally {
+                _runningCommands.remove(command);
+                // from here on the watchdog doesn't interrupt this thread anymore
+                command.finish();
+            }
+            if (_watchedDriver._killedBy != null) {
+                throw timeoutOr(failure);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return wrapResult(method, result);
+        }
+
+        private Throwable timeoutOr(final Throwable t) {
+            final CommandTimeoutException killedBy = _watchedDriver._killedBy;
+            if (killedBy == null) {
+                return t;
+            }
+            // the interruption was for the command, not for the test
+            Thread.interrupted();
+            return new CommandTimeoutException(killedBy.getMessage(), killedBy);
+        }
+
+        private Object wrapResult(final Method method, final Object result) {
+            final Class<?> returnType = method.getReturnType();
+            // a proxy can only be returned where an interface or Object is expected
+            if (!returnType.isInterface() && returnType != Object.class) {
+                return result;
+            }
+            return wrapValue(result);
+        }
+
+        /**
+         * Wraps the Selenium objects, like WebElement, Navigation, Options, TargetLocator, ...,
+         * also in lists as returned by findElements or executeScript.
+         */
+        private Object wrapValue(final Object value) {
+            if (value == null) {
+                return null;
+            }
+            if (value instanceof List<?>) {
+                final List<Object> wrapped = new ArrayList<Object>();
+                for (final Object o : (List<?>) value) {
+                    wrapped.add(wrapValue(o));
+                }
+                return wrapped;
+            }
+            if (isSeleniumObject(value.getClass())) {
+                return wrap(value, _watchedDriver);
+            }
+            return value;
+        }
+
+        private boolean isSeleniumObject(final Class<?> c) {
+            return c.getName().startsWith("org.openqa.selenium.");
+        }
+    }
+}
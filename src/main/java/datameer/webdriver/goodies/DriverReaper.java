@@ -0,0 +1,195 @@
+package datameer.webdriver.goodies;
+
+import java.io.PrintStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openqa.selenium.WebDriver;
+
+import datameer.webdriver.goodies.SimpleWebDriverRunner.WebDriverDefinition;
+
+/**
+ * Quits drivers in the background so that a slow or hung {@link WebDriver#quit()} doesn't delay the next test.
+ * Each quit gets a deadline: when it passes, the browser process is killed if the {@link WebDriverDefinition}
+ * knows how to do it, otherwise the driver is counted as leaked.
+ * The number of drivers quitting at the same time is bounded: when the limit is reached, handing over
+ * a driver waits until a quit has completed or has been reaped, so that live browsers can't pile up.
+ * The parallel suites raise the limit to their number of workers or grid sessions, see {@link #ensureSlots(int)}.
+ * Settings in tests.properties:
+ * <pre>
+ * driver.quitTimeout=30000
+ * # maximal number of drivers quitting at the same time
+ * driver.reaperThreads=2
+ * </pre>
+ * @version $Revision:  $
+ */
+public class DriverReaper {
+    private final long _quitTimeoutMillis;
+    private final ExecutorService _quitExecutor;
+    private final Semaphore _quitSlots;
+    private int _slots;
+    private final ScheduledExecutorService _deadlineExecutor;
+    private final Object _pendingLock = new Object();
+    private int _pending;
+
+    private final AtomicLong _quitCount = new AtomicLong();
+    private final AtomicLong _quitTotalNanos = new AtomicLong();
+    private final AtomicLong _quitMaxNanos = new AtomicLong();
+    private final AtomicLong _timedOutCount = new AtomicLong();
+    private final AtomicLong _killedCount = new AtomicLong();
+    private final AtomicLong _leakedCount = new AtomicLong();
+
+    /**
+     * Builds the reaper configured in tests.properties.
+     * @return the reaper
+     */
+    static DriverReaper fromConfiguration() {
+        final TestsConfiguration config = TestsConfiguration.getInstance();
+        return new DriverReaper(config.getIntProperty("driver.quitTimeout", 30000),
+            config.getIntProperty("driver.reaperThreads", 2));
+    }
+
+    public DriverReaper(final long quitTimeoutMillis, final int threads) {
+        _quitTimeoutMillis = quitTimeoutMillis;
+        // a thread per running quit: a hung quit must not delay the next ones, the semaphore bounds them
+        _quitExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("driver-reaper"));
+        _slots = Math.max(1, threads);
+        _quitSlots = new Semaphore(_slots);
+        _deadlineExecutor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("driver-reaper-deadline"));
+    }
+
+    /**
+     * Hands the driver over to the reaper. Returns immediately unless too many drivers are already quitting.
+     * @param driver the driver to quit
+     * @param definition the definition that built the driver, used to kill the browser if quit hangs
+     */
+    public void quit(final WebDriver driver, final WebDriverDefinition definition) {
+        _quitSlots.acquireUninterruptibly();
+        synchronized (_pendingLock) {
+            ++_pending;
+        }
+        _quitExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final AtomicBoolean reaped = new AtomicBoolean();
+                final long start = System.nanoTime();
+                final ScheduledFuture<?> deadline = _deadlineExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (reaped.compareAndSet(false, true)) {
+                            _timedOutCount.incrementAndGet();
+                            forceKill(driver, definition);
+                            done();
+                        }
+                    }
+                }, _quitTimeoutMillis, TimeUnit.MILLISECONDS);
+
+                try {
+                    driver.quit();
+                }
+                catch (final Exception e) {
+                    // ignore it, happens for instance when a @Test(timeout=...) has failed timed out
+                    // see http://code.google.com/p/selenium/issues/detail?id=1998
+                    System.err.println("Error quitting the driver:");
+                    e.printStackTrace(System.err);
+                }
+
+                if (reaped.compareAndSet(false, true)) {
+                    deadline.cancel(false);
+                    recordLatency(System.nanoTime() - start);
+                    done();
+                }
+            }
+        });
+    }
+
+    /**
+     * Allows at least this number of drivers to quit at the same time. Used when tests run in parallel:
+     * each of them hands over a driver at its end and shouldn't have to wait for the quits of the other ones.
+     * @param slots the minimal number of drivers quitting at the same time, the limit is never lowered
+     */
+    public synchronized void ensureSlots(final int slots) {
+        if (slots > _slots) {
+            _quitSlots.release(slots - _slots);
+            _slots = slots;
+        }
+    }
+
+    private void forceKill(final WebDriver driver, final WebDriverDefinition definition) {
+        boolean killed = false;
+        try {
+            killed = definition != null && definition.killBrowser(driver);
+        }
+        catch (final Exception e) {
+            System.err.println("Error killing the browser:");
+            e.printStackTrace(System.err);
+        }
+        if (killed) {
+            _killedCount.incrementAndGet();
+        }
+        else {
+            _leakedCount.incrementAndGet();
+            System.err.println("Driver " + (definition != null ? definition.getName() : driver)
+                + " didn't quit within " + _quitTimeoutMillis + "ms and couldn't be killed");
+        }
+    }
+
+    private void recordLatency(final long nanos) {
+        RunTelemetry.getInstance().driverQuit(nanos);
+        _quitCount.incrementAndGet();
+        _quitTotalNanos.addAndGet(nanos);
+        long max = _quitMaxNanos.get();
+        while (nanos > max && !_quitMaxNanos.compareAndSet(max, nanos)) {
+            max = _quitMaxNanos.get();
+        }
+    }
+
+    private void done() {
+        _quitSlots.release();
+        synchronized (_pendingLock) {
+            if (--_pending == 0) {
+                _pendingLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until all drivers handed over so far have either quit or been reaped after their deadline.
+     */
+    public void drain() {
+        synchronized (_pendingLock) {
+            while (_pending > 0) {
+                try {
+                    _pendingLock.wait();
+                }
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Prints the quit latency and the number of timed out, killed and leaked drivers.
+     * @param out the stream to print to
+     */
+    public void printReport(final PrintStream out) {
+        final long count = _quitCount.get();
+        final long avgMillis = count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(_quitTotalNanos.get() / count);
+        out.println("Driver quit: " + count + " quit, avg " + avgMillis + "ms, max "
+            + TimeUnit.NANOSECONDS.toMillis(_quitMaxNanos.get()) + "ms, "
+            + _timedOutCount.get() + " timed out, " + _killedCount.get() + " killed, "
+            + _leakedCount.get() + " leaked");
+    }
+
+    public long getLeakedCount() {
+        return _leakedCount.get();
+    }
+}
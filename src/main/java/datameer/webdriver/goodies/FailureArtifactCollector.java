@@ -0,0 +1,322 @@
+package datameer.webdriver.goodies;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.TakesScreenshot;
+import org.openqa.selenium.WebDriver;
+
+/**
+ * Collects a screenshot, the page source and the captured log (see {@link LogRingBuffer}) when a test fails.
+ * Only the calls to the driver are made while the test thread waits, with a timeout as the browser
+ * may hang after the failure. Decoding, compression,
+ * deduplication and writing are done by a bounded background executor. When its queue is full,
+ * the test thread does the work itself, which limits the memory held by pending artifacts.
+ * <p>
+ * Artifacts are stored once per content hash and referenced from an <code>index.txt</code> file.
+ * Settings in tests.properties:
+ * <pre>
+ * failureArtifacts.enabled=true
+ * failureArtifacts.folder=target/failure-artifacts
+ * failureArtifacts.threads=2
+ * failureArtifacts.queueSize=16
+ * # maximal time in ms to wait for the screenshot and for the page source
+ * failureArtifacts.captureTimeout=10000
+ * </pre>
+ * @version $Revision:  $
+ */
+public class FailureArtifactCollector {
+    private final File _folder;
+    private final ThreadPoolExecutor _executor;
+    private final ExecutorService _captureExecutor;
+    private final long _captureTimeoutMillis;
+    private final Set<String> _writtenHashes = Collections.synchronizedSet(new HashSet<String>());
+    private final Object _pendingLock = new Object();
+    private int _pending;
+
+    /**
+     * Builds the collector configured in tests.properties.
+     * @return <code>null</code> if failure artifacts are disabled
+     */
+    static FailureArtifactCollector fromConfiguration() {
+        final TestsConfiguration config = TestsConfiguration.getInstance();
+        if (!config.getBooleanProperty("failureArtifacts.enabled", true)) {
+            return null;
+        }
+        final File folder = new File(config.getProperty("failureArtifacts.folder", "target/failure-artifacts"));
+        return new FailureArtifactCollector(folder, config.getIntProperty("failureArtifacts.threads", 2),
+            config.getIntProperty("failureArtifacts.queueSize", 16), config.getIntProperty("failureArtifacts.captureTimeout", 10000));
+    }
+
+    public FailureArtifactCollector(final File folder, final int threads, final int queueSize) {
+        this(folder, threads, queueSize, 10000);
+    }
+
+    public FailureArtifactCollector(final File folder, final int threads, final int queueSize, final long captureTimeoutMillis) {
+        _folder = folder;
+        _captureTimeoutMillis = captureTimeoutMillis;
+        // a hung call blocks its thread until the driver gets quit: don't reuse a fixed number of threads
+        _captureExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory("failure-capture"));
+        _executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), new DaemonThreadFactory("failure-artifacts"),
+            new ThreadPoolExecutor.CallerRunsPolicy());
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Captures the artifacts of a failed test. Must be called on the test thread while the driver is still open.
+     * @param driver the driver used by the test, may be <code>null</code> if the test didn't use any
+     * @param testName the name of the test, used in the index
+     */
+    public void collect(final WebDriver driver, final String testName) {
+        collect(driver, testName, null);
+    }
+
+    /**
+     * Captures the artifacts of a failed test. Must be called on the test thread while the driver is still open.
+     * @param driver the driver used by the test, may be <code>null</code> if the test didn't use any
+     * @param testName the name of the test, used in the index
+     * @param log the log captured during the test, may be <code>null</code>
+     */
+    public void collect(final WebDriver driver, final String testName, final String log) {
+        if (driver == null) {
+            if (log != null) {
+                submit(new WriteArtifactsTask(testName, null, null, log));
+            }
+            return;
+        }
+
+        // keep the screenshot base64 encoded: this is what the browser delivers, decoding is done later
+        String base64Screenshot = null;
+        boolean responding = true;
+        if (driver instanceof TakesScreenshot) {
+            final Future<String> screenshot = _captureExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return ((TakesScreenshot) driver).getScreenshotAs(OutputType.BASE64);
+                }
+            });
+            base64Screenshot = getWithTimeout(screenshot, testName);
+            responding = screenshot.isDone() && !screenshot.isCancelled();
+        }
+        String pageSource = null;
+        // no need to wait a second time for a hung browser
+        if (responding) {
+            pageSource = getWithTimeout(_captureExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return driver.getPageSource();
+                }
+            }), testName);
+        }
+
+        if (base64Screenshot != null || pageSource != null || log != null) {
+            submit(new WriteArtifactsTask(testName, base64Screenshot, pageSource, log));
+        }
+    }
+
+    /**
+     * Waits for a call to the driver, at most the capture timeout.
+     * @return <code>null</code> if the call failed or didn't complete in time
+     */
+    private String getWithTimeout(final Future<String> future, final String testName) {
+        try {
+            return future.get(_captureTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (final TimeoutException e) {
+            future.cancel(true);
+            System.err.println("Browser didn't respond within " + _captureTimeoutMillis
+                + "ms when collecting the failure artifacts of " + testName);
+            return null;
+        }
+        catch (final InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (final ExecutionException e) {
+            // ignore, the browser may be in a bad state after the failure
+            return null;
+        }
+    }
+
+    private void submit(final Runnable task) {
+        synchronized (_pendingLock) {
+            ++_pending;
+        }
+        _executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                }
+                finally {
+                    synchronized (_pendingLock) {
+                        if (--_pending == 0) {
+                            _pendingLock.notifyAll();
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until all artifacts submitted so far have been written.
+     */
+    public void flush() {
+        synchronized (_pendingLock) {
+            while (_pending > 0) {
+                try {
+                    _pendingLock.wait();
+                }
+                catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private class WriteArtifactsTask implements Runnable {
+        private final String _testName;
+        private final String _base64Screenshot;
+        private final String _pageSource;
+        private final String _log;
+
+        WriteArtifactsTask(final String testName, final String base64Screenshot, final String pageSource, final String log) {
+            _testName = testName;
+            _base64Screenshot = base64Screenshot;
+            _pageSource = pageSource;
+            _log = log;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final StringBuilder indexLine = new StringBuilder(_testName);
+                if (_base64Screenshot != null) {
+                    final byte[] png = OutputType.BYTES.convertFromBase64Png(_base64Screenshot);
+                    indexLine.append("\tscreenshot=").append(write(png, ".png", false));
+                }
+                if (_pageSource != null) {
+                    final byte[] html = _pageSource.getBytes("UTF-8");
+                    indexLine.append("\tsource=").append(write(html, ".html.gz", true));
+                }
+                if (_log != null) {
+                    indexLine.append("\tlog=").append(write(_log.getBytes("UTF-8"), ".log.gz", true));
+                }
+                appendToIndex(indexLine.toString());
+            }
+            catch (final Exception e) {
+                System.err.println("Error writing failure artifacts for " + _testName + ":");
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+
+    /**
+     * Writes the content in a file named after its hash, unless an identical content has already been written.
+     * @return the file name
+     */
+    private String write(final byte[] content, final String extension, final boolean compress) throws IOException {
+        final String fileName = sha1(content) + extension;
+        if (_writtenHashes.contains(fileName)) {
+            return fileName;
+        }
+
+        _folder.mkdirs();
+        OutputStream os = new FileOutputStream(new File(_folder, fileName));
+        try {
+            if (compress) {
+                os = new GZIPOutputStream(os);
+            }
+            os.write(content);
+        }
+        finally {
+            IOUtils.closeQuietly(os);
+        }
+        // only once written: after a failure the next duplicate tries again
+        _writtenHashes.add(fileName);
+        return fileName;
+    }
+
+    private synchronized void appendToIndex(final String line) throws IOException {
+        _folder.mkdirs();
+        final Writer writer = new FileWriter(new File(_folder, "index.txt"), true);
+        try {
+            writer.write(line);
+            writer.write('\n');
+        }
+        finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+    private static String sha1(final byte[] content) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        final byte[] hash = digest.digest(content);
+        final StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (final byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
+
+/**
+ * Creates named daemon threads, so that background work never prevents the JVM from exiting.
+ * The threads don't capture their log in the buffer of the test that happened to create them.
+ */
+class DaemonThreadFactory implements ThreadFactory {
+    private final String _prefix;
+    private final AtomicInteger _counter = new AtomicInteger();
+
+    DaemonThreadFactory(final String prefix) {
+        _prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(final Runnable r) {
+        final Runnable withoutLogCapture = new Runnable() {
+            @Override
+            public void run() {
+                LogCaptureHandler.capture(null);
+                r.run();
+            }
+        };
+        final Thread thread = new Thread(withoutLogCapture, _prefix + "-" + _counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,386 @@
+package datameer.webdriver.goodies;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A minimal HTTP server delivering the static files of a folder, allowing to run tests
+ * against fixture pages without deployed application.
+ * All connections are handled by a single non blocking thread. Files are sent with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} which lets
+ * the OS copy them directly to the socket, and connections are kept alive between requests.
+ * Only GET and HEAD are supported.
+ * <p>
+ * Started by {@link TestsConfiguration#getTestServer()} when configured in tests.properties:
+ * <pre>
+ * fixtureServer.folder=src/test/fixtures
+ * fixtureServer.port=0
+ * </pre>
+ * @version $Revision:  $
+ */
+public class FixtureServer {
+    private static final int MAX_REQUEST_HEAD_SIZE = 8192;
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<String, String>();
+    static {
+        CONTENT_TYPES.put("html", "text/html");
+        CONTENT_TYPES.put("htm", "text/html");
+        CONTENT_TYPES.put("xhtml", "application/xhtml+xml");
+        CONTENT_TYPES.put("js", "application/javascript");
+        CONTENT_TYPES.put("css", "text/css");
+        CONTENT_TYPES.put("json", "application/json");
+        CONTENT_TYPES.put("xml", "text/xml");
+        CONTENT_TYPES.put("txt", "text/plain");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+    }
+
+    private final File _root;
+    private final String _rootPath;
+    private final int _requestedPort;
+    private ServerSocketChannel _serverChannel;
+    private Selector _selector;
+    private volatile boolean _running;
+
+    /**
+     * @param root the folder containing the files to serve
+     * @param port the port to listen on, 0 to use any free port
+     * @throws IOException
+     */
+    public FixtureServer(final File root, final int port) throws IOException {
+        _root = root.getCanonicalFile();
+        _rootPath = _root.getPath() + File.separator;
+        _requestedPort = port;
+    }
+
+    /**
+     * Starts listening on all network interfaces.
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException {
+        _selector = Selector.open();
+        _serverChannel = ServerSocketChannel.open();
+        _serverChannel.configureBlocking(false);
+        _serverChannel.socket().setReuseAddress(true);
+        _serverChannel.socket().bind(new InetSocketAddress(_requestedPort), 1024);
+        _serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+        _running = true;
+
+        final Thread thread = new Thread("fixture-server") {
+            @Override
+            public void run() {
+                serve();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the server and closes all connections.
+     */
+    public synchronized void stop() {
+        _running = false;
+        if (_selector != null) {
+            _selector.wakeup();
+        }
+    }
+
+    /**
+     * Gets the port the server listens on.
+     * @return the port
+     */
+    public int getPort() {
+        return _serverChannel.socket().getLocalPort();
+    }
+
+    private void serve() {
+        try {
+            while (_running) {
+                _selector.select();
+                for (final Iterator<SelectionKey> iter = _selector.selectedKeys().iterator(); iter.hasNext();) {
+                    final SelectionKey key = iter.next();
+                    iter.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        }
+                        else {
+                            final Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        }
+                    }
+                    catch (final IOException e) {
+                        // connection closed by the browser
+                        closeQuietly(key);
+                    }
+                    catch (final CancelledKeyException e) {
+                        closeQuietly(key);
+                    }
+                    catch (final RuntimeException e) {
+                        // a single connection must never stop the server
+                        System.err.println("Fixture server: error handling a connection:");
+                        e.printStackTrace(System.err);
+                        closeQuietly(key);
+                    }
+                }
+            }
+        }
+        catch (final IOException e) {
+            System.err.println("Fixture server failed:");
+            e.printStackTrace(System.err);
+        }
+        finally {
+            for (final SelectionKey key : _selector.keys()) {
+                closeQuietly(key);
+            }
+            try {
+                _selector.close();
+            }
+            catch (final IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = _serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        final SelectionKey key = channel.register(_selector, SelectionKey.OP_READ);
+        key.attach(new Connection(channel, key));
+    }
+
+    private static void closeQuietly(final SelectionKey key) {
+        key.cancel();
+        if (key.attachment() instanceof Connection) {
+            ((Connection) key.attachment()).closeFile();
+        }
+        try {
+            key.channel().close();
+        }
+        catch (final IOException e) {
+            // ignore
+        }
+    }
+
+    private static String getContentType(final File file) {
+        final String name = file.getName();
+        final String extension = name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+        final String contentType = CONTENT_TYPES.get(extension);
+        return contentType != null ? contentType : "application/octet-stream";
+    }
+
+    /**
+     * The state of a browser connection: the request being read and the response being written.
+     */
+    private class Connection {
+        private final SocketChannel _channel;
+        private final SelectionKey _key;
+        private final ByteBuffer _in = ByteBuffer.allocate(MAX_REQUEST_HEAD_SIZE);
+        private ByteBuffer _head;
+        private FileChannel _file;
+        private long _position, _end;
+        private boolean _keepAlive;
+
+        Connection(final SocketChannel channel, final SelectionKey key) {
+            _channel = channel;
+            _key = key;
+        }
+
+        void read() throws IOException {
+            if (_channel.read(_in) == -1) {
+                closeQuietly(_key);
+                return;
+            }
+            processRequest();
+        }
+
+        /**
+         * Starts the response to the request in the input buffer, if it has been fully received.
+         */
+        private void processRequest() throws IOException {
+            if (_head != null) {
+                return; // still writing the previous response, pipelined requests wait in the buffer
+            }
+            final int headEnd = findHeadEnd();
+            if (headEnd == -1) {
+                if (!_in.hasRemaining()) {
+                    _keepAlive = false;
+                    respondError(431, "Request Header Fields Too Large");
+                    startWriting();
+                }
+                return;
+            }
+
+            final String head = new String(_in.array(), 0, headEnd, "ISO-8859-1");
+            // keep what follows for the next request
+            _in.flip();
+            _in.position(headEnd + 4);
+            _in.compact();
+
+            respond(head);
+            startWriting();
+        }
+
+        private int findHeadEnd() {
+            final byte[] bytes = _in.array();
+            for (int i = 0; i + 3 < _in.position(); ++i) {
+                if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void respond(final String head) throws IOException {
+            final String[] lines = head.split("\r\n");
+            final String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3) {
+                _keepAlive = false;
+                respondError(400, "Bad Request");
+                return;
+            }
+            final String method = requestLine[0];
+            final String version = requestLine[2];
+            _keepAlive = "HTTP/1.1".equals(version);
+            for (int i = 1; i < lines.length; ++i) {
+                final String line = lines[i].toLowerCase();
+                if (line.startsWith("connection:")) {
+                    _keepAlive = line.contains("keep-alive");
+                }
+            }
+
+            if (!"GET".equals(method) && !"HEAD".equals(method)) {
+                // the request may have a body, that must not be read as the next request
+                _keepAlive = false;
+                respondError(405, "Method Not Allowed");
+                return;
+            }
+
+            final File file;
+            try {
+                file = getFile(requestLine[1]);
+            }
+            catch (final URISyntaxException e) {
+                // malformed escape sequence like /%zz
+                respondError(400, "Bad Request");
+                return;
+            }
+            if (file == null) {
+                respondError(404, "Not Found");
+                return;
+            }
+            _head = buildHead(200, "OK", getContentType(file), file.length());
+            if ("GET".equals(method)) {
+                _file = new FileInputStream(file).getChannel();
+                _position = 0;
+                _end = file.length();
+            }
+        }
+
+        /**
+         * Finds the file for a request URI.
+         * @return <code>null</code> if it doesn't exist or is outside of the root folder
+         * @throws URISyntaxException if the URI is invalid, for instance with an invalid escape sequence
+         */
+        private File getFile(final String uri) throws URISyntaxException, IOException {
+            // not URLDecoder: '+' is a plus in a path, not a space
+            final String path = new URI(uri).getPath();
+            if (path == null || path.indexOf('\0') != -1) {
+                return null;
+            }
+            File file = new File(_root, path).getCanonicalFile();
+            if (file.isDirectory()) {
+                file = new File(file, "index.html");
+            }
+            if (!file.getPath().startsWith(_rootPath) || !file.isFile()) {
+                return null;
+            }
+            return file;
+        }
+
+        private void respondError(final int status, final String message) throws IOException {
+            final byte[] body = message.getBytes("ISO-8859-1");
+            final ByteBuffer head = buildHead(status, message, "text/plain", body.length);
+            _head = ByteBuffer.allocate(head.remaining() + body.length);
+            _head.put(head).put(body).flip();
+        }
+
+        private ByteBuffer buildHead(final int status, final String message, final String contentType,
+                final long contentLength) throws IOException {
+            final String head = "HTTP/1.1 " + status + " " + message + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + contentLength + "\r\n"
+                + "Connection: " + (_keepAlive ? "keep-alive" : "close") + "\r\n"
+                + "\r\n";
+            return ByteBuffer.wrap(head.getBytes("ISO-8859-1"));
+        }
+
+        private void startWriting() throws IOException {
+            _key.interestOps(SelectionKey.OP_WRITE);
+            write();
+        }
+
+        void write() throws IOException {
+            if (_head.hasRemaining()) {
+                _channel.write(_head);
+                if (_head.hasRemaining()) {
+                    return;
+                }
+            }
+            if (_file != null) {
+                _position += _file.transferTo(_position, _end - _position, _channel);
+                if (_position < _end) {
+                    return;
+                }
+                closeFile();
+            }
+
+            _head = null;
+            if (!_keepAlive) {
+                closeQuietly(_key);
+                return;
+            }
+            _key.interestOps(SelectionKey.OP_READ);
+            processRequest();
+        }
+
+        void closeFile() {
+            if (_file != null) {
+                try {
+                    _file.close();
+                }
+                catch (final IOException e) {
+                    // ignore
+                }
+                _file = null;
+            }
+        }
+    }
+}
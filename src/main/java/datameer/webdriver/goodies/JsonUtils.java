@@ -0,0 +1,52 @@
+package datameer.webdriver.goodies;
+
+/**
+ * Minimal helpers to write JSON without additional dependency.
+ * @version $Revision:  $
+ */
+final class JsonUtils {
+    private JsonUtils() {
+        // only static methods
+    }
+
+    /**
+     * Appends a quoted and escaped JSON string.
+     * @param sb the builder to append to
+     * @param s the string, <code>null</code> is written as JSON null
+     * @return the builder
+     */
+    static StringBuilder appendString(final StringBuilder sb, final String s) {
+        if (s == null) {
+            return sb.append("null");
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"');
+    }
+}
@@ -0,0 +1,218 @@
+package datameer.webdriver.goodies;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.TimeZone;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * A fixed size character buffer keeping the latest log entries of a test. When it is full,
+ * the oldest entries get overwritten. The buffer is allocated once and reused for each test:
+ * appending to it doesn't allocate anything.
+ * <p>
+ * The size is configured in tests.properties, globally or per driver (0 disables the capture):
+ * <pre>
+ * logBufferSize=65536
+ * hu_ff.logBufferSize=262144
+ * </pre>
+ * @version $Revision:  $
+ */
+public class LogRingBuffer {
+    private final char[] _chars;
+    private int _next;
+    private boolean _wrapped;
+
+    /**
+     * @param capacity the number of characters kept
+     */
+    public LogRingBuffer(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        _chars = new char[capacity];
+    }
+
+    public int getCapacity() {
+        return _chars.length;
+    }
+
+    public synchronized LogRingBuffer append(final char c) {
+        _chars[_next++] = c;
+        if (_next == _chars.length) {
+            _next = 0;
+            _wrapped = true;
+        }
+        return this;
+    }
+
+    public synchronized LogRingBuffer append(final CharSequence s) {
+        final CharSequence text = s != null ? s : "null";
+        for (int i = 0; i < text.length(); ++i) {
+            append(text.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * Appends the decimal representation of a number without building a String.
+     */
+    public synchronized LogRingBuffer append(final long value) {
+        if (value == Long.MIN_VALUE) {
+            return append(Long.toString(value));
+        }
+        long remaining = value;
+        if (remaining < 0) {
+            append('-');
+            remaining = -remaining;
+        }
+        long divisor = 1;
+        while (remaining / divisor >= 10) {
+            divisor *= 10;
+        }
+        while (divisor > 0) {
+            append((char) ('0' + remaining / divisor % 10));
+            divisor /= 10;
+        }
+        return this;
+    }
+
+    /**
+     * Forgets the content, keeping the allocated memory.
+     */
+    public synchronized void reset() {
+        _next = 0;
+        _wrapped = false;
+    }
+
+    public synchronized boolean isEmpty() {
+        return _next == 0 && !_wrapped;
+    }
+
+    /**
+     * Gets the content, oldest entries first. If older entries have been overwritten,
+     * the partially overwritten entry is skipped.
+     */
+    @Override
+    public synchronized String toString() {
+        if (!_wrapped) {
+            return new String(_chars, 0, _next);
+        }
+        int start = _next;
+        for (int i = 0; i < _chars.length; ++i) {
+            if (_chars[(_next + i) % _chars.length] == '\n') {
+                start = (_next + i + 1) % _chars.length;
+                break;
+            }
+        }
+        final StringBuilder sb = new StringBuilder(_chars.length + 40);
+        sb.append("[older log entries dropped]\n");
+        if (start >= _next) {
+            sb.append(_chars, start, _chars.length - start).append(_chars, 0, _next);
+        }
+        else {
+            sb.append(_chars, start, _next - start);
+        }
+        return sb.toString();
+    }
+}
+
+/**
+ * Writes the log records of java.util.logging to the {@link LogRingBuffer} of the current thread.
+ * This catches what Selenium logs as well as HtmlUnit's messages, including the JavaScript errors,
+ * that commons-logging forwards to java.util.logging when no other logging framework is present.
+ * The buffer is inherited by the threads started from the test thread while the test runs,
+ * like HtmlUnit's JavaScript threads, but not by the pool threads (see {@link DaemonThreadFactory}).
+ */
+class LogCaptureHandler extends Handler {
+    private static final InheritableThreadLocal<LogRingBuffer> BUFFER = new InheritableThreadLocal<LogRingBuffer>();
+    // TimeZone.getDefault() returns a new copy on each call
+    private static final TimeZone TIME_ZONE = TimeZone.getDefault();
+    // only used for formatMessage(), that is synchronized
+    private static final SimpleFormatter FORMATTER = new SimpleFormatter();
+    private static LogCaptureHandler _installed;
+
+    /**
+     * Adds the handler to the root logger, once.
+     */
+    static synchronized void install() {
+        if (_installed == null) {
+            _installed = new LogCaptureHandler();
+            Logger.getLogger("").addHandler(_installed);
+        }
+    }
+
+    /**
+     * Sets the buffer receiving the log records of the current thread.
+     * @param buffer <code>null</code> to stop capturing
+     */
+    static void capture(final LogRingBuffer buffer) {
+        if (buffer != null) {
+            BUFFER.set(buffer);
+        }
+        else {
+            BUFFER.remove();
+        }
+    }
+
+    @Override
+    public void publish(final LogRecord record) {
+        final LogRingBuffer buffer = BUFFER.get();
+        if (buffer == null || !isLoggable(record)) {
+            return;
+        }
+        // only messages with parameters and exceptions need to allocate
+        final String message = record.getParameters() == null ? record.getMessage() : formatMessage(record);
+        synchronized (buffer) {
+            appendTime(buffer, record.getMillis());
+            buffer.append(' ').append(record.getLevel().getName()).append(' ').append(record.getLoggerName());
+            buffer.append(": ").append(message).append('\n');
+            if (record.getThrown() != null) {
+                final StringWriter stackTrace = new StringWriter();
+                record.getThrown().printStackTrace(new PrintWriter(stackTrace));
+                buffer.append(stackTrace.getBuffer());
+            }
+        }
+    }
+
+    private static String formatMessage(final LogRecord record) {
+        return FORMATTER.formatMessage(record);
+    }
+
+    /**
+     * Appends the local time as HH:mm:ss.SSS.
+     */
+    private static void appendTime(final LogRingBuffer buffer, final long millis) {
+        final long millisOfDay = (millis + TIME_ZONE.getOffset(millis)) % (24 * 3600 * 1000L);
+        appendPadded(buffer, millisOfDay / 3600000, 2);
+        buffer.append(':');
+        appendPadded(buffer, millisOfDay / 60000 % 60, 2);
+        buffer.append(':');
+        appendPadded(buffer, millisOfDay / 1000 % 60, 2);
+        buffer.append('.');
+        appendPadded(buffer, millisOfDay % 1000, 3);
+    }
+
+    private static void appendPadded(final LogRingBuffer buffer, final long value, final int digits) {
+        long limit = 1;
+        for (int i = 1; i < digits; ++i) {
+            limit *= 10;
+            if (value < limit) {
+                buffer.append('0');
+            }
+        }
+        buffer.append(value);
+    }
+
+    @Override
+    public void flush() {
+        // nothing to flush
+    }
+
+    @Override
+    public void close() {
+        // nothing to close
+    }
+}
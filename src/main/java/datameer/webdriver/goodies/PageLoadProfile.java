@@ -0,0 +1,237 @@
+package datameer.webdriver.goodies;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpException;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.protocol.HttpContext;
+
+import com.gargoylesoftware.htmlunit.HttpWebConnection;
+import com.gargoylesoftware.htmlunit.WebClient;
+import com.gargoylesoftware.htmlunit.WebRequest;
+import com.gargoylesoftware.htmlunit.WebResponse;
+
+/**
+ * The HTTP requests made by a {@link BetterHtmlUnitDriver} and the time spent loading pages and executing JavaScript.
+ * Written as a <a href="http://www.softwareishard.com/blog/har-12-spec/">HAR</a> file with following extensions:
+ * <ul>
+ * <li>pageTimings.onLoad is the duration of {@link BetterHtmlUnitDriver#get(String)}, including JavaScript run during load</li>
+ * <li>log._scriptTime is the time spent in executeScript and executeAsyncScript</li>
+ * </ul>
+ * Enabled by setting the folder where the files should be written in tests.properties:
+ * <pre>
+ * profiling.folder=target/profiling
+ * </pre>
+ * @version $Revision:  $
+ */
+public class PageLoadProfile {
+    private final List<RequestRecord> _requests = new ArrayList<RequestRecord>();
+    private final List<PageRecord> _pages = new ArrayList<PageRecord>();
+    private final AtomicLong _scriptNanos = new AtomicLong();
+
+    /**
+     * Gets the folder where the profiles should be written.
+     * @return <code>null</code> if profiling is disabled
+     */
+    static File getProfilingFolder() {
+        final String folder = TestsConfiguration.getInstance().getProperty("profiling.folder", null);
+        return folder != null ? new File(folder) : null;
+    }
+
+    synchronized void addRequest(final RequestRecord record) {
+        _requests.add(record);
+    }
+
+    synchronized void addPage(final String url, final long start, final long nanos) {
+        _pages.add(new PageRecord(url, start, nanos));
+    }
+
+    void addScriptTime(final long nanos) {
+        _scriptNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public synchronized void clear() {
+        _requests.clear();
+        _pages.clear();
+        _scriptNanos.set(0);
+    }
+
+    /**
+     * Writes the recorded requests as HAR file.
+     * @param file the file to write
+     * @throws IOException
+     */
+    public void writeHar(final File file) throws IOException {
+        final String json = toHar();
+        file.getParentFile().mkdirs();
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(json);
+        }
+        finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
+    synchronized String toHar() {
+        final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\"log\":{\"version\":\"1.2\",\"creator\":{\"name\":\"webdriver-goodies\",\"version\":\"\"},\"pages\":[");
+        for (int i = 0; i < _pages.size(); ++i) {
+            final PageRecord page = _pages.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"startedDateTime\":");
+            JsonUtils.appendString(sb, dateFormat.format(new Date(page._start)));
+            sb.append(",\"id\":\"page_").append(i + 1).append("\",\"title\":");
+            JsonUtils.appendString(sb, page._url);
+            sb.append(",\"pageTimings\":{\"onLoad\":").append(millis(page._nanos)).append("}}");
+        }
+        sb.append("],\"entries\":[");
+        for (int i = 0; i < _requests.size(); ++i) {
+            final RequestRecord request = _requests.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"startedDateTime\":");
+            JsonUtils.appendString(sb, dateFormat.format(new Date(request._start)));
+            sb.append(",\"time\":").append(millis(request._totalNanos));
+            sb.append(",\"request\":{\"method\":");
+            JsonUtils.appendString(sb, request._method);
+            sb.append(",\"url\":");
+            JsonUtils.appendString(sb, request._url);
+            sb.append(",\"httpVersion\":\"HTTP/1.1\",\"cookies\":[],\"headers\":[],\"queryString\":[],\"headersSize\":-1,\"bodySize\":-1}");
+            sb.append(",\"response\":{\"status\":").append(request._status).append(",\"statusText\":");
+            JsonUtils.appendString(sb, request._statusText);
+            sb.append(",\"httpVersion\":\"HTTP/1.1\",\"cookies\":[],\"headers\":[],\"content\":{\"size\":").append(request._bytes);
+            sb.append(",\"mimeType\":");
+            JsonUtils.appendString(sb, request._contentType);
+            sb.append("},\"redirectURL\":\"\",\"headersSize\":-1,\"bodySize\":").append(request._bytes).append('}');
+            final long waitNanos = request._firstByteNanos >= 0 ? request._firstByteNanos : request._totalNanos;
+            sb.append(",\"cache\":{},\"timings\":{\"send\":0,\"wait\":").append(millis(waitNanos));
+            sb.append(",\"receive\":").append(millis(request._totalNanos - waitNanos)).append("}}");
+        }
+        sb.append("],\"_scriptTime\":").append(millis(_scriptNanos.get())).append("}}");
+        return sb.toString();
+    }
+
+    private static long millis(final long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static class PageRecord {
+        private final String _url;
+        private final long _start;
+        private final long _nanos;
+
+        PageRecord(final String url, final long start, final long nanos) {
+            _url = url;
+            _start = start;
+            _nanos = nanos;
+        }
+    }
+
+    static class RequestRecord {
+        private final String _method;
+        private final String _url;
+        private final long _start;
+        private final int _status;
+        private final String _statusText;
+        private final String _contentType;
+        private final long _bytes;
+        private final long _firstByteNanos;
+        private final long _totalNanos;
+
+        RequestRecord(final WebRequest request, final WebResponse response, final long start,
+                final long bytes, final long firstByteNanos, final long totalNanos) {
+            _method = String.valueOf(request.getHttpMethod());
+            _url = request.getUrl().toExternalForm();
+            _start = start;
+            _status = response.getStatusCode();
+            _statusText = response.getStatusMessage();
+            _contentType = response.getContentType();
+            _bytes = bytes;
+            _firstByteNanos = firstByteNanos;
+            _totalNanos = totalNanos;
+        }
+    }
+}
+
+/**
+ * The HtmlUnit connection recording the requests in a {@link PageLoadProfile}.
+ * The time to first byte is taken when HttpClient has received the response headers.
+ */
+class ProfilingWebConnection extends HttpWebConnection {
+    private final PageLoadProfile _profile;
+    private final ThreadLocal<Long> _headersReceived = new ThreadLocal<Long>();
+
+    ProfilingWebConnection(final WebClient webClient, final PageLoadProfile profile) {
+        super(webClient);
+        _profile = profile;
+    }
+
+    @Override
+    protected AbstractHttpClient createHttpClient() {
+        final AbstractHttpClient httpClient = super.createHttpClient();
+        httpClient.addResponseInterceptor(new HttpResponseInterceptor() {
+            @Override
+            public void process(final HttpResponse response, final HttpContext context) throws HttpException, IOException {
+                _headersReceived.set(System.nanoTime());
+            }
+        });
+        return httpClient;
+    }
+
+    @Override
+    public WebResponse getResponse(final WebRequest request) throws IOException {
+        final long start = System.currentTimeMillis();
+        final long startNanos = System.nanoTime();
+        _headersReceived.remove();
+        final WebResponse response = super.getResponse(request);
+        final long totalNanos = System.nanoTime() - startNanos;
+
+        final Long headersReceived = _headersReceived.get();
+        final long firstByteNanos = headersReceived != null ? headersReceived - startNanos : -1;
+        _profile.addRequest(new PageLoadProfile.RequestRecord(request, response, start,
+            countBytes(response), firstByteNanos, totalNanos));
+        return response;
+    }
+
+    /**
+     * Gets the size of the body from the Content-Length header, the content is only looked at
+     * when the header is missing or invalid.
+     */
+    private static long countBytes(final WebResponse response) {
+        final String contentLength = response.getResponseHeaderValue("Content-Length");
+        if (contentLength != null) {
+            try {
+                return Long.parseLong(contentLength.trim());
+            }
+            catch (final NumberFormatException e) {
+                // count the content
+            }
+        }
+        final byte[] content = response.getContentAsBytes();
+        return content != null ? content.length : 0;
+    }
+}
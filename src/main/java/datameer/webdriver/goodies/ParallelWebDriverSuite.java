@@ -0,0 +1,476 @@
+package datameer.webdriver.goodies;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Ignore;
+import org.junit.internal.AssumptionViolatedException;
+import org.junit.internal.builders.IgnoredClassRunner;
+import org.junit.runner.Description;
+import org.junit.runner.RunWith;
+import org.junit.runner.Runner;
+import org.junit.runner.manipulation.Filter;
+import org.junit.runner.manipulation.NoTestsRemainException;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runners.Suite;
+import org.junit.runners.model.FrameworkMethod;
+import org.junit.runners.model.InitializationError;
+import org.junit.runners.model.Statement;
+
+import datameer.webdriver.goodies.SimpleWebDriverRunner.CurrentExecutionInfo;
+import datameer.webdriver.goodies.SimpleWebDriverRunner.WebDriverDefinition;
+
+/**
+ * A suite running the tests of all its classes, with all drivers, in parallel.
+ * Each (class, method, driver) is a task: the tasks are dealt out to worker threads class by class
+ * and a worker that has nothing to do anymore steals tasks from the other ones. Each worker uses its own drivers.
+ * Usage:
+ * <pre>
+ * &#064;RunWith(ParallelWebDriverSuite.class)
+ * &#064;SuiteClasses({ LoginTest.class, SearchTest.class })
+ * public class AllTests {
+ * }
+ * </pre>
+ * The classes must be annotated with &#064;RunWith(SimpleWebDriverRunner.class) or a subclass of it.
+ * As the drivers of a class run at the same time, its &#064;BeforeClass and &#064;AfterClass methods run once
+ * for all drivers (and not once per driver as with {@link SimpleWebDriverRunner}): before the first test
+ * and after the last one, whichever worker runs them. Those of the suite class run around the whole suite.
+ * The number of workers is configured in tests.properties:
+ * <pre>
+ * suite.threads=4
+ * </pre>
+ * When the drivers are remote sessions on a grid, the workers spend most of their time waiting for HTTP responses.
+ * On Java 21 or newer, each test can then run on its own virtual thread, the number of tests running
+ * at the same time being limited only by the sessions available on the grid (all drivers must then be remote):
+ * <pre>
+ * suite.execution=virtual
+ * suite.gridCapacity=200
+ * </pre>
+ * @version $Revision:  $
+ */
+public class ParallelWebDriverSuite extends Suite {
+    private final List<SimpleWebDriverRunner> _classRunners = new ArrayList<SimpleWebDriverRunner>();
+    private final List<Runner> _ignoredClassRunners = new ArrayList<Runner>();
+    private final int _threads;
+    private final boolean _virtualThreads;
+    private final int _gridCapacity;
+
+    public ParallelWebDriverSuite(final Class<?> klass) throws Throwable {
+        super(klass, new ArrayList<Runner>());
+        final TestsConfiguration config = TestsConfiguration.getInstance();
+        _threads = Math.max(1, config.getIntProperty("suite.threads", Runtime.getRuntime().availableProcessors()));
+        _virtualThreads = "virtual".equalsIgnoreCase(config.getProperty("suite.execution", "workers"));
+        _gridCapacity = Math.max(1, config.getIntProperty("suite.gridCapacity", _threads));
+        if (_virtualThreads) {
+            for (final WebDriverDefinition def : SimpleWebDriverRunner.getDriverDefinitions()) {
+                if (!def.isRemote()) {
+                    throw new InitializationError("suite.execution=virtual requires remote drivers, but driver '"
+                        + def.getName() + "' has no remoteDriverUrl");
+                }
+            }
+        }
+
+        for (final Class<?> testClass : TieredWebDriverSuite.getSuiteClasses(klass)) {
+            if (testClass.getAnnotation(Ignore.class) != null) {
+                _ignoredClassRunners.add(new IgnoredClassRunner(testClass));
+            }
+            else {
+                _classRunners.add(buildClassRunner(testClass));
+            }
+        }
+        getChildren().addAll(_ignoredClassRunners);
+        getChildren().addAll(_classRunners);
+    }
+
+    /**
+     * Builds the runner of a class with the runner class of its &#064;RunWith annotation.
+     * The runners are built here rather than by JUnit's RunnerBuilder, the caller has to handle &#064;Ignore.
+     */
+    static SimpleWebDriverRunner buildClassRunner(final Class<?> testClass) throws Throwable {
+        final RunWith runWith = testClass.getAnnotation(RunWith.class);
+        if (runWith == null || !SimpleWebDriverRunner.class.isAssignableFrom(runWith.value())) {
+            throw new InitializationError("class '" + testClass.getName() + "' must be run with SimpleWebDriverRunner");
+        }
+        try {
+            return (SimpleWebDriverRunner) runWith.value().getConstructor(Class.class).newInstance(testClass);
+        }
+        catch (final InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void filter(final Filter filter) throws NoTestsRemainException {
+        for (final Iterator<SimpleWebDriverRunner> iter = _classRunners.iterator(); iter.hasNext();) {
+            final SimpleWebDriverRunner runner = iter.next();
+            try {
+                runner.filter(filter);
+            }
+            catch (final NoTestsRemainException e) {
+                iter.remove();
+                getChildren().remove(runner);
+            }
+        }
+        for (final Iterator<Runner> iter = _ignoredClassRunners.iterator(); iter.hasNext();) {
+            final Runner runner = iter.next();
+            if (!filter.shouldRun(runner.getDescription())) {
+                iter.remove();
+                getChildren().remove(runner);
+            }
+        }
+        if (_classRunners.isEmpty() && _ignoredClassRunners.isEmpty()) {
+            throw new NoTestsRemainException();
+        }
+    }
+
+    /**
+     * Keeps the &#064;BeforeClass and &#064;AfterClass methods of the suite class around the scheduled tests.
+     */
+    @Override
+    protected Statement classBlock(final RunNotifier notifier) {
+        Statement statement = new Statement() {
+            @Override
+            public void evaluate() {
+                runTests(notifier);
+            }
+        };
+        statement = withBeforeClasses(statement);
+        statement = withAfterClasses(statement);
+        return statement;
+    }
+
+    private void runTests(final RunNotifier notifier) {
+        for (final Runner runner : _ignoredClassRunners) {
+            runner.run(notifier);
+        }
+
+        final Map<String, RunListener> listeners = new HashMap<String, RunListener>();
+        final List<ClassTasks> allClassTasks = new ArrayList<ClassTasks>();
+        for (final SimpleWebDriverRunner classRunner : _classRunners) {
+            listeners.put(classRunner.getTestClass().getJavaClass().getName(), classRunner.createListener(true));
+            final ClassTasks classTasks = new ClassTasks(classRunner);
+            if (!classTasks._tasks.isEmpty()) {
+                allClassTasks.add(classTasks);
+            }
+        }
+
+        // each running test hands over its driver at its end, none should wait for a quit slot
+        SimpleWebDriverRunner.ensureQuitSlots(_virtualThreads ? _gridCapacity : _threads);
+
+        final RunListener listener = new DispatchingListener(listeners);
+        notifier.addListener(listener);
+        try {
+            if (_virtualThreads) {
+                runOnVirtualThreads(allClassTasks, notifier);
+            }
+            else {
+                runInWorkers(allClassTasks, notifier);
+            }
+        }
+        finally {
+            notifier.removeListener(listener);
+        }
+
+        SimpleWebDriverRunner.flushFailureArtifacts();
+        SimpleWebDriverRunner.drainDriverReaper();
+        SimpleWebDriverRunner.saveAdaptiveTimeouts();
+    }
+
+    private void runInWorkers(final List<ClassTasks> allClassTasks, final RunNotifier notifier) {
+        final List<LinkedBlockingDeque<TestTask>> queues = new ArrayList<LinkedBlockingDeque<TestTask>>();
+        for (int i = 0; i < _threads; ++i) {
+            queues.add(new LinkedBlockingDeque<TestTask>());
+        }
+        // keep the tests of a class together: their @BeforeClass/@AfterClass run close to each other
+        int i = 0;
+        for (final ClassTasks classTasks : allClassTasks) {
+            queues.get(i++ % _threads).addAll(classTasks._tasks);
+        }
+
+        RunTelemetry.getInstance().workersStarted(_threads);
+        final List<Thread> workers = new ArrayList<Thread>();
+        for (int index = 0; index < _threads; ++index) {
+            final Thread worker = new Worker(index, queues, notifier);
+            workers.add(worker);
+            worker.start();
+        }
+        try {
+            for (final Thread worker : workers) {
+                worker.join();
+            }
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            RunTelemetry.getInstance().workersStopped(_threads);
+        }
+    }
+
+    private void runOnVirtualThreads(final List<ClassTasks> allClassTasks, final RunNotifier notifier) {
+        final ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        final Semaphore sessions = new Semaphore(_gridCapacity);
+        // at most one per session: their log buffers are reused rather than allocated for each test
+        final Queue<CurrentExecutionInfo> idleExecutionInfos = new ConcurrentLinkedQueue<CurrentExecutionInfo>();
+        // the sessions are the workers
+        RunTelemetry.getInstance().workersStarted(_gridCapacity);
+        try {
+            for (final ClassTasks classTasks : allClassTasks) {
+                for (final TestTask task : classTasks._tasks) {
+                    // wait here rather than in parked threads for a free session
+                    sessions.acquire();
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            final CurrentExecutionInfo executionInfo = idleExecutionInfos.poll();
+                            SimpleWebDriverRunner.initWorkerThread(executionInfo != null ? executionInfo : new CurrentExecutionInfo());
+                            try {
+                                task.run(notifier);
+                            }
+                            finally {
+                                idleExecutionInfos.add(SimpleWebDriverRunner.releaseWorkerThread());
+                                sessions.release();
+                            }
+                        }
+                    });
+                }
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            RunTelemetry.getInstance().workersStopped(_gridCapacity);
+        }
+    }
+
+    /**
+     * Calls Executors.newVirtualThreadPerTaskExecutor() by reflection: it exists only since Java 21
+     * and the library has to remain usable on older JVMs.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (final NoSuchMethodException e) {
+            throw new RuntimeException("suite.execution=virtual requires Java 21 or newer, current version is "
+                + System.getProperty("java.version"));
+        }
+        catch (final Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class Worker extends Thread {
+        private final int _index;
+        private final List<LinkedBlockingDeque<TestTask>> _queues;
+        private final RunNotifier _notifier;
+
+        Worker(final int index, final List<LinkedBlockingDeque<TestTask>> queues, final RunNotifier notifier) {
+            super("webdriver-worker-" + index);
+            _index = index;
+            _queues = queues;
+            _notifier = notifier;
+        }
+
+        @Override
+        public void run() {
+            SimpleWebDriverRunner.initWorkerThread();
+            try {
+                TestTask task;
+                while ((task = nextTask()) != null) {
+                    task.run(_notifier);
+                }
+            }
+            finally {
+                SimpleWebDriverRunner.releaseWorkerThread();
+            }
+        }
+
+        /**
+         * Takes the next task from the own queue or steals one from the end of another queue.
+         * @return <code>null</code> when all queues are empty
+         */
+        private TestTask nextTask() {
+            final TestTask task = _queues.get(_index).pollFirst();
+            if (task != null) {
+                return task;
+            }
+            for (int i = 1; i < _queues.size(); ++i) {
+                final TestTask stolen = _queues.get((_index + i) % _queues.size()).pollLast();
+                if (stolen != null) {
+                    return stolen;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The tests of a class with all drivers. As the drivers run in parallel, the class level before and after methods
+     * run only once: before the first test starts, whatever its driver, and after the last one has finished.
+     */
+    private static class ClassTasks {
+        private final SimpleWebDriverRunner _runner;
+        private final List<TestTask> _tasks = new ArrayList<TestTask>();
+        private final AtomicInteger _remaining;
+        // a lock rather than synchronized: a virtual thread blocked in synchronized code would pin its carrier thread
+        private final Lock _lock = new ReentrantLock();
+        private boolean _started, _beforeClassesFailed;
+
+        ClassTasks(final SimpleWebDriverRunner runner) {
+            _runner = runner;
+            for (final Runner child : runner.getClassRunners()) {
+                final WebDriverClassRunner driverRunner = (WebDriverClassRunner) child;
+                final List<FrameworkMethod> methods = driverRunner.getTestMethods();
+                for (final FrameworkMethod method : methods) {
+                    _tasks.add(new TestTask(this, driverRunner, method));
+                }
+                RunTelemetry.getInstance().testsQueued(driverRunner.getName(), methods.size());
+            }
+            _remaining = new AtomicInteger(_tasks.size());
+        }
+
+        /**
+         * Runs the &#064;BeforeClass methods if not done yet.
+         * @return <code>false</code> if they failed and the tests shouldn't run
+         */
+        boolean beforeClasses(final RunNotifier notifier) {
+            _lock.lock();
+            try {
+                if (!_started) {
+                    _started = true;
+                    try {
+                        // the methods are the same for all drivers
+                        _tasks.get(0)._driverRunner.runBeforeClasses();
+                    }
+                    catch (final AssumptionViolatedException e) {
+                        _beforeClassesFailed = true;
+                        notifier.fireTestIgnored(_runner.getDescription());
+                    }
+                    catch (final Throwable t) {
+                        _beforeClassesFailed = true;
+                        notifier.fireTestFailure(new Failure(_runner.getDescription(), t));
+                    }
+                }
+                return !_beforeClassesFailed;
+            }
+            finally {
+                _lock.unlock();
+            }
+        }
+
+        /**
+         * Runs the &#064;AfterClass methods once the last test of all drivers is done.
+         */
+        void testDone(final RunNotifier notifier) {
+            if (_remaining.decrementAndGet() == 0) {
+                try {
+                    _tasks.get(0)._driverRunner.runAfterClasses();
+                }
+                catch (final Throwable t) {
+                    notifier.fireTestFailure(new Failure(_runner.getDescription(), t));
+                }
+            }
+        }
+    }
+
+    private static class TestTask {
+        private final ClassTasks _classTasks;
+        private final WebDriverClassRunner _driverRunner;
+        private final FrameworkMethod _method;
+
+        TestTask(final ClassTasks classTasks, final WebDriverClassRunner driverRunner, final FrameworkMethod method) {
+            _classTasks = classTasks;
+            _driverRunner = driverRunner;
+            _method = method;
+        }
+
+        void run(final RunNotifier notifier) {
+            final RunTelemetry telemetry = RunTelemetry.getInstance();
+            telemetry.taskStarted();
+            final long start = System.nanoTime();
+            try {
+                if (_classTasks.beforeClasses(notifier)) {
+                    try {
+                        _driverRunner.runTest(_method, notifier);
+                    }
+                    finally {
+                        // outside of the notifier: this can block and would hold the events of all other tests
+                        SimpleWebDriverRunner.finishDeferredTest();
+                    }
+                }
+                else {
+                    // not run, won't be notified
+                    telemetry.testsQueued(_driverRunner.getName(), -1);
+                }
+            }
+            finally {
+                _classTasks.testDone(notifier);
+                telemetry.taskFinished(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Forwards the test events to the listener of the test's class.
+     */
+    private static class DispatchingListener extends RunListener {
+        private static final RunListener NO_LISTENER = new RunListener();
+        private final Map<String, RunListener> _listeners;
+
+        DispatchingListener(final Map<String, RunListener> listeners) {
+            _listeners = listeners;
+        }
+
+        private RunListener getListener(final Description description) {
+            // the class level events, like a failing @BeforeClass, are for JUnit only
+            if (!description.isTest()) {
+                return NO_LISTENER;
+            }
+            final RunListener listener = _listeners.get(description.getClassName());
+            return listener != null ? listener : NO_LISTENER;
+        }
+
+        @Override
+        public void testStarted(final Description description) throws Exception {
+            getListener(description).testStarted(description);
+        }
+
+        @Override
+        public void testFailure(final Failure failure) throws Exception {
+            getListener(failure.getDescription()).testFailure(failure);
+        }
+
+        @Override
+        public void testIgnored(final Description description) throws Exception {
+            getListener(description).testIgnored(description);
+        }
+
+        @Override
+        public void testFinished(final Description description) throws Exception {
+            getListener(description).testFinished(description);
+        }
+    }
+}
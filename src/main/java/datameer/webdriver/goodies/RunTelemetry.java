@@ -0,0 +1,373 @@
+package datameer.webdriver.goodies;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Live counters of the running tests, allowing to follow a long run and to spot a stalled driver
+ * before the end. Registered in the platform MBean server as
+ * <code>datameer.webdriver.goodies:type=RunTelemetry</code> (visible for instance with jconsole).
+ * All counters are updated without locking.
+ * <p>
+ * Can be disabled in tests.properties:
+ * <pre>
+ * telemetry.enabled=false
+ * </pre>
+ * @version $Revision:  $
+ */
+public class RunTelemetry implements RunTelemetryMBean {
+    private static final String OBJECT_NAME = "datameer.webdriver.goodies:type=RunTelemetry";
+    private static final RunTelemetry INSTANCE = new RunTelemetry();
+    static {
+        if (TestsConfiguration.getInstance().getBooleanProperty("telemetry.enabled", true)) {
+            INSTANCE.register();
+        }
+    }
+
+    private final ConcurrentMap<String, Lane> _lanes = new ConcurrentHashMap<String, Lane>();
+    private final AtomicLong _driversBuilt = new AtomicLong();
+    private final AtomicLong _driversReleased = new AtomicLong();
+    private final LatencyCounter _buildLatency = new LatencyCounter();
+    private final LatencyCounter _quitLatency = new LatencyCounter();
+    private final AtomicLong _retries = new AtomicLong();
+    private final AtomicInteger _workers = new AtomicInteger();
+    private final AtomicInteger _busyWorkers = new AtomicInteger();
+    private final AtomicLong _busyNanos = new AtomicLong();
+    private final AtomicLong _workersStartNanos = new AtomicLong();
+
+    public static RunTelemetry getInstance() {
+        return INSTANCE;
+    }
+
+    private void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        }
+        catch (final Exception e) {
+            System.err.println("Error registering the run telemetry MBean:");
+            e.printStackTrace(System.err);
+        }
+    }
+
+    private Lane getLane(final String driverName) {
+        Lane lane = _lanes.get(driverName);
+        if (lane == null) {
+            final Lane newLane = new Lane();
+            lane = _lanes.putIfAbsent(driverName, newLane);
+            if (lane == null) {
+                lane = newLane;
+            }
+        }
+        return lane;
+    }
+
+    void testsQueued(final String driverName, final int count) {
+        getLane(driverName)._queued.addAndGet(count);
+    }
+
+    void testStarted(final String driverName) {
+        final Lane lane = getLane(driverName);
+        lane._queued.decrementAndGet();
+        lane._running.incrementAndGet();
+        lane._started.incrementAndGet();
+    }
+
+    void testIgnored(final String driverName) {
+        final Lane lane = getLane(driverName);
+        lane._queued.decrementAndGet();
+        lane._ignored.incrementAndGet();
+    }
+
+    void testFinished(final String driverName, final boolean failed) {
+        final Lane lane = getLane(driverName);
+        lane._running.decrementAndGet();
+        lane._completed.incrementAndGet();
+        if (failed) {
+            lane._failed.incrementAndGet();
+        }
+    }
+
+    void driverBuilt(final long nanos) {
+        _driversBuilt.incrementAndGet();
+        _buildLatency.record(nanos);
+    }
+
+    void driverReleased() {
+        _driversReleased.incrementAndGet();
+    }
+
+    void driverQuit(final long nanos) {
+        _quitLatency.record(nanos);
+    }
+
+    void retried(final String driverName) {
+        _retries.incrementAndGet();
+        if (driverName != null) {
+            getLane(driverName)._retries.incrementAndGet();
+        }
+    }
+
+    void workersStarted(final int count) {
+        _workersStartNanos.compareAndSet(0, System.nanoTime());
+        _workers.addAndGet(count);
+    }
+
+    void workersStopped(final int count) {
+        _workers.addAndGet(-count);
+    }
+
+    void taskStarted() {
+        _busyWorkers.incrementAndGet();
+    }
+
+    void taskFinished(final long nanos) {
+        _busyWorkers.decrementAndGet();
+        _busyNanos.addAndGet(nanos);
+    }
+
+    private long sum(final int counter) {
+        long sum = 0;
+        for (final Lane lane : _lanes.values()) {
+            sum += lane.get(counter);
+        }
+        return sum;
+    }
+
+    @Override
+    public long getTestsStarted() {
+        return sum(Lane.STARTED);
+    }
+
+    @Override
+    public long getTestsCompleted() {
+        return sum(Lane.COMPLETED);
+    }
+
+    @Override
+    public long getTestsFailed() {
+        return sum(Lane.FAILED);
+    }
+
+    @Override
+    public long getTestsIgnored() {
+        return sum(Lane.IGNORED);
+    }
+
+    @Override
+    public long getTestsQueued() {
+        return sum(Lane.QUEUED);
+    }
+
+    @Override
+    public long getTestsRunning() {
+        return sum(Lane.RUNNING);
+    }
+
+    @Override
+    public long getActiveDrivers() {
+        return _driversBuilt.get() - _driversReleased.get();
+    }
+
+    @Override
+    public long getDriverBuildCount() {
+        return _buildLatency.getCount();
+    }
+
+    @Override
+    public long getAverageDriverBuildMillis() {
+        return _buildLatency.getAverageMillis();
+    }
+
+    @Override
+    public long getMaxDriverBuildMillis() {
+        return _buildLatency.getMaxMillis();
+    }
+
+    @Override
+    public long getDriverQuitCount() {
+        return _quitLatency.getCount();
+    }
+
+    @Override
+    public long getAverageDriverQuitMillis() {
+        return _quitLatency.getAverageMillis();
+    }
+
+    @Override
+    public long getMaxDriverQuitMillis() {
+        return _quitLatency.getMaxMillis();
+    }
+
+    @Override
+    public long getRetries() {
+        return _retries.get();
+    }
+
+    @Override
+    public int getWorkers() {
+        return _workers.get();
+    }
+
+    @Override
+    public int getBusyWorkers() {
+        return _busyWorkers.get();
+    }
+
+    @Override
+    public double getWorkerUtilization() {
+        final long start = _workersStartNanos.get();
+        final int workers = _workers.get();
+        if (start == 0 || workers == 0) {
+            return 0;
+        }
+        final long available = workers * (System.nanoTime() - start);
+        return available <= 0 ? 0 : Math.min(1, (double) _busyNanos.get() / available);
+    }
+
+    @Override
+    public String[] getDriverLanes() {
+        final List<String> lines = new ArrayList<String>();
+        for (final Entry<String, Lane> entry : getSortedLanes().entrySet()) {
+            final Lane lane = entry.getValue();
+            lines.add(entry.getKey() + ": queued=" + lane.get(Lane.QUEUED) + ", running=" + lane.get(Lane.RUNNING)
+                + ", completed=" + lane.get(Lane.COMPLETED) + ", failed=" + lane.get(Lane.FAILED)
+                + ", ignored=" + lane.get(Lane.IGNORED) + ", retries=" + lane.get(Lane.RETRIES));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public String getSnapshotJson() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\"tests\":{\"queued\":").append(getTestsQueued());
+        sb.append(",\"running\":").append(getTestsRunning());
+        sb.append(",\"completed\":").append(getTestsCompleted());
+        sb.append(",\"failed\":").append(getTestsFailed());
+        sb.append(",\"ignored\":").append(getTestsIgnored());
+        sb.append(",\"retries\":").append(getRetries());
+        sb.append("},\"drivers\":{\"active\":").append(getActiveDrivers());
+        sb.append(",\"build\":");
+        _buildLatency.appendJson(sb);
+        sb.append(",\"quit\":");
+        _quitLatency.appendJson(sb);
+        sb.append("},\"workers\":{\"count\":").append(getWorkers());
+        sb.append(",\"busy\":").append(getBusyWorkers());
+        sb.append(",\"utilization\":").append(Math.round(getWorkerUtilization() * 1000) / 1000.0);
+        sb.append("},\"lanes\":{");
+        boolean first = true;
+        for (final Entry<String, Lane> entry : getSortedLanes().entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            final Lane lane = entry.getValue();
+            JsonUtils.appendString(sb, entry.getKey());
+            sb.append(":{\"queued\":").append(lane.get(Lane.QUEUED));
+            sb.append(",\"running\":").append(lane.get(Lane.RUNNING));
+            sb.append(",\"completed\":").append(lane.get(Lane.COMPLETED));
+            sb.append(",\"failed\":").append(lane.get(Lane.FAILED));
+            sb.append(",\"ignored\":").append(lane.get(Lane.IGNORED));
+            sb.append(",\"retries\":").append(lane.get(Lane.RETRIES)).append('}');
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    private Map<String, Lane> getSortedLanes() {
+        return new TreeMap<String, Lane>(_lanes);
+    }
+
+    /**
+     * The counters of one driver.
+     */
+    private static class Lane {
+        static final int QUEUED = 0;
+        static final int RUNNING = 1;
+        static final int STARTED = 2;
+        static final int COMPLETED = 3;
+        static final int FAILED = 4;
+        static final int IGNORED = 5;
+        static final int RETRIES = 6;
+
+        private final AtomicLong _queued = new AtomicLong();
+        private final AtomicLong _running = new AtomicLong();
+        private final AtomicLong _started = new AtomicLong();
+        private final AtomicLong _completed = new AtomicLong();
+        private final AtomicLong _failed = new AtomicLong();
+        private final AtomicLong _ignored = new AtomicLong();
+        private final AtomicLong _retries = new AtomicLong();
+
+        long get(final int counter) {
+            switch (counter) {
+                case QUEUED:
+                    // a test ignored by a suite without having been queued can make it negative
+                    return Math.max(0, _queued.get());
+                case RUNNING:
+                    return _running.get();
+                case STARTED:
+                    return _started.get();
+                case COMPLETED:
+                    return _completed.get();
+                case FAILED:
+                    return _failed.get();
+                case IGNORED:
+                    return _ignored.get();
+                default:
+                    return _retries.get();
+            }
+        }
+    }
+
+    /**
+     * Count, total and maximum of a duration.
+     */
+    private static class LatencyCounter {
+        private final AtomicLong _count = new AtomicLong();
+        private final AtomicLong _totalNanos = new AtomicLong();
+        private final AtomicLong _maxNanos = new AtomicLong();
+
+        void record(final long nanos) {
+            _count.incrementAndGet();
+            _totalNanos.addAndGet(nanos);
+            long max = _maxNanos.get();
+            while (nanos > max && !_maxNanos.compareAndSet(max, nanos)) {
+                max = _maxNanos.get();
+            }
+        }
+
+        long getCount() {
+            return _count.get();
+        }
+
+        long getAverageMillis() {
+            final long count = _count.get();
+            return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(_totalNanos.get() / count);
+        }
+
+        long getMaxMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(_maxNanos.get());
+        }
+
+        void appendJson(final StringBuilder sb) {
+            sb.append("{\"count\":").append(getCount());
+            sb.append(",\"avgMillis\":").append(getAverageMillis());
+            sb.append(",\"maxMillis\":").append(getMaxMillis()).append('}');
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package datameer.webdriver.goodies;
+
+/**
+ * The live counters of a test run, as exposed through JMX by {@link RunTelemetry}.
+ * @version $Revision:  $
+ */
+public interface RunTelemetryMBean {
+    long getTestsStarted();
+
+    long getTestsCompleted();
+
+    long getTestsFailed();
+
+    long getTestsIgnored();
+
+    long getTestsQueued();
+
+    long getTestsRunning();
+
+    long getActiveDrivers();
+
+    long getDriverBuildCount();
+
+    long getAverageDriverBuildMillis();
+
+    long getMaxDriverBuildMillis();
+
+    long getDriverQuitCount();
+
+    long getAverageDriverQuitMillis();
+
+    long getMaxDriverQuitMillis();
+
+    long getRetries();
+
+    int getWorkers();
+
+    int getBusyWorkers();
+
+    /**
+     * Gets the ratio of the time the workers have spent running tests since they started.
+     * @return a value between 0 and 1
+     */
+    double getWorkerUtilization();
+
+    /**
+     * Gets the counters of each driver, one line per driver.
+     * @return the lines
+     */
+    String[] getDriverLanes();
+
+    /**
+     * Gets all counters as a JSON object.
+     * @return the JSON
+     */
+    String getSnapshotJson();
+}
@@ -0,0 +1,427 @@
+package datameer.webdriver.goodies;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openqa.selenium.OutputType;
+import org.openqa.selenium.TakesScreenshot;
+import org.openqa.selenium.WebDriver;
+
+/**
+ * Compares screenshots with baselines for visual regression checks.
+ * The images are compared as <code>int[]</code> ARGB buffers: identical buffers are detected
+ * with a single array comparison, otherwise the image is split in tiles compared in parallel.
+ * Regions containing dynamic content (dates, animations, ...) can be ignored.
+ * <p>
+ * Settings in tests.properties:
+ * <pre>
+ * screenshotComparison.threads=4
+ * screenshotComparison.tileSize=128
+ * # maximal difference per color channel for pixels considered identical
+ * screenshotComparison.tolerance=0
+ * </pre>
+ * @version $Revision:  $
+ */
+public class ScreenshotComparator {
+    private static final int MISMATCH_COLOR = 0xFF0000;
+    private static final int IGNORED_COLOR = 0x8080FF;
+    private static final Comparator<int[]> SPAN_START_ORDER = new Comparator<int[]>() {
+        @Override
+        public int compare(final int[] span1, final int[] span2) {
+            return span1[0] < span2[0] ? -1 : (span1[0] == span2[0] ? 0 : 1);
+        }
+    };
+    private static ScreenshotComparator _instance;
+
+    private final ExecutorService _executor;
+    private final int _tileSize;
+    private final int _tolerance;
+
+    /**
+     * Gets the comparator configured in tests.properties.
+     * @return the shared instance
+     */
+    public static synchronized ScreenshotComparator getInstance() {
+        if (_instance == null) {
+            final TestsConfiguration config = TestsConfiguration.getInstance();
+            _instance = new ScreenshotComparator(
+                config.getIntProperty("screenshotComparison.threads", Runtime.getRuntime().availableProcessors()),
+                config.getIntProperty("screenshotComparison.tileSize", 128),
+                config.getIntProperty("screenshotComparison.tolerance", 0));
+        }
+        return _instance;
+    }
+
+    /**
+     * @param threads the number of threads comparing tiles
+     * @param tileSize the width and height of the tiles
+     * @param tolerance the maximal difference per color channel for pixels considered identical
+     */
+    public ScreenshotComparator(final int threads, final int tileSize, final int tolerance) {
+        _executor = Executors.newFixedThreadPool(Math.max(1, threads), new DaemonThreadFactory("screenshot-comparison"));
+        _tileSize = Math.max(16, tileSize);
+        _tolerance = tolerance;
+    }
+
+    /**
+     * Compares the current screenshot of a driver with a baseline. If the baseline doesn't exist yet,
+     * the screenshot is saved as baseline and the result is marked with {@link Result#isNewBaseline()}.
+     * @param driver the driver, must implement {@link TakesScreenshot}
+     * @param baseline the PNG file of the expected screenshot
+     * @param ignoredRegions the regions to ignore
+     * @return the result
+     * @throws IOException
+     */
+    public Result compare(final WebDriver driver, final File baseline, final Rectangle... ignoredRegions) throws IOException {
+        if (!(driver instanceof TakesScreenshot)) {
+            throw new IllegalArgumentException(driver.getClass().getName() + " can't take screenshots");
+        }
+        final byte[] png = ((TakesScreenshot) driver).getScreenshotAs(OutputType.BYTES);
+        final BufferedImage actual = decode(png, "Screenshot");
+        if (!baseline.isFile()) {
+            write(png, baseline);
+            final int compared = countComparedPixels(actual.getWidth(), actual.getHeight(), ignoredRegions);
+            return new Result(0, compared, null, false, true);
+        }
+        return compare(decode(FileUtils.readFileToByteArray(baseline), "Baseline " + baseline), actual, ignoredRegions);
+    }
+
+    /**
+     * Compares two images.
+     * @param expected the baseline
+     * @param actual the image to check
+     * @param ignoredRegions the regions to ignore
+     * @return the result
+     */
+    public Result compare(final BufferedImage expected, final BufferedImage actual, final Rectangle... ignoredRegions) {
+        final int width = expected.getWidth();
+        final int height = expected.getHeight();
+        if (width != actual.getWidth() || height != actual.getHeight()) {
+            return new Result(width * height, width * height, null, true);
+        }
+        return compare(getPixels(expected), getPixels(actual), width, height, ignoredRegions);
+    }
+
+    /**
+     * Compares two images of the same size given as ARGB pixels, row after row.
+     * @param expected the pixels of the baseline
+     * @param actual the pixels of the image to check
+     * @param width the width of the images
+     * @param height the height of the images
+     * @param ignoredRegions the regions to ignore
+     * @return the result
+     */
+    public Result compare(final int[] expected, final int[] actual, final int width, final int height,
+            final Rectangle... ignoredRegions) {
+        if (expected.length != width * height || actual.length != width * height) {
+            throw new IllegalArgumentException("Expected " + width * height + " pixels, got " + expected.length
+                + " and " + actual.length);
+        }
+        // cheap pre-check: most screenshots are unchanged
+        if (Arrays.equals(expected, actual)) {
+            return new Result(0, countComparedPixels(width, height, ignoredRegions), null, false);
+        }
+
+        final int[] diff = new int[width * height];
+        final List<Future<int[]>> futures = new ArrayList<Future<int[]>>();
+        for (int y = 0; y < height; y += _tileSize) {
+            for (int x = 0; x < width; x += _tileSize) {
+                final Rectangle tile = new Rectangle(x, y, Math.min(_tileSize, width - x), Math.min(_tileSize, height - y));
+                futures.add(_executor.submit(new CompareTile(expected, actual, diff, width, tile,
+                    getIntersecting(tile, ignoredRegions))));
+            }
+        }
+
+        int mismatches = 0;
+        int compared = 0;
+        try {
+            for (final Future<int[]> future : futures) {
+                final int[] counts = future.get();
+                mismatches += counts[0];
+                compared += counts[1];
+            }
+        }
+        catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (final ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        final BufferedImage diffImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        diffImage.setRGB(0, 0, width, height, diff, 0, width);
+        return new Result(mismatches, compared, diffImage, false);
+    }
+
+    /**
+     * Compares the pixels of a tile and draws them in the diff image: mismatching pixels in red,
+     * ignored ones in blue, the others as a pale version of the expected image.
+     */
+    private class CompareTile implements Callable<int[]> {
+        private final int[] _expected;
+        private final int[] _actual;
+        private final int[] _diff;
+        private final int _width;
+        private final Rectangle _tile;
+        private final Rectangle[] _ignoredRegions;
+
+        CompareTile(final int[] expected, final int[] actual, final int[] diff, final int width,
+                final Rectangle tile, final Rectangle[] ignoredRegions) {
+            _expected = expected;
+            _actual = actual;
+            _diff = diff;
+            _width = width;
+            _tile = tile;
+            _ignoredRegions = ignoredRegions;
+        }
+
+        @Override
+        public int[] call() {
+            int mismatches = 0;
+            int compared = 0;
+            for (int y = _tile.y; y < _tile.y + _tile.height; ++y) {
+                final int rowStart = y * _width;
+                for (int x = _tile.x; x < _tile.x + _tile.width; ++x) {
+                    final int i = rowStart + x;
+                    if (isIgnored(x, y)) {
+                        _diff[i] = IGNORED_COLOR;
+                    }
+                    else {
+                        ++compared;
+                        if (matches(_expected[i], _actual[i])) {
+                            _diff[i] = fade(_expected[i]);
+                        }
+                        else {
+                            ++mismatches;
+                            _diff[i] = MISMATCH_COLOR;
+                        }
+                    }
+                }
+            }
+            return new int[] { mismatches, compared };
+        }
+
+        private boolean isIgnored(final int x, final int y) {
+            for (final Rectangle region : _ignoredRegions) {
+                if (region.contains(x, y)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private boolean matches(final int expected, final int actual) {
+        if (expected == actual) {
+            return true;
+        }
+        return Math.abs(((expected >> 16) & 0xFF) - ((actual >> 16) & 0xFF)) <= _tolerance
+            && Math.abs(((expected >> 8) & 0xFF) - ((actual >> 8) & 0xFF)) <= _tolerance
+            && Math.abs((expected & 0xFF) - (actual & 0xFF)) <= _tolerance;
+    }
+
+    /**
+     * Mixes a color with white, to keep the context visible in the diff image.
+     */
+    private static int fade(final int rgb) {
+        final int r = (((rgb >> 16) & 0xFF) + 3 * 0xFF) / 4;
+        final int g = (((rgb >> 8) & 0xFF) + 3 * 0xFF) / 4;
+        final int b = ((rgb & 0xFF) + 3 * 0xFF) / 4;
+        return (r << 16) | (g << 8) | b;
+    }
+
+    private static Rectangle[] getIntersecting(final Rectangle tile, final Rectangle[] regions) {
+        final List<Rectangle> intersecting = new ArrayList<Rectangle>();
+        for (final Rectangle region : regions) {
+            if (region.intersects(tile)) {
+                intersecting.add(region);
+            }
+        }
+        return intersecting.toArray(new Rectangle[intersecting.size()]);
+    }
+
+    /**
+     * Counts the pixels outside of the ignored regions from the areas of the regions, without looking
+     * at each pixel: the image is cut in vertical slices at the left and right edges of the regions
+     * and the overlapping parts of the regions are merged in each slice.
+     */
+    private static int countComparedPixels(final int width, final int height, final Rectangle[] ignoredRegions) {
+        final Rectangle image = new Rectangle(0, 0, width, height);
+        final List<Rectangle> clipped = new ArrayList<Rectangle>();
+        for (final Rectangle region : ignoredRegions) {
+            final Rectangle intersection = region.intersection(image);
+            if (!intersection.isEmpty()) {
+                clipped.add(intersection);
+            }
+        }
+        if (clipped.isEmpty()) {
+            return width * height;
+        }
+
+        final int[] edges = new int[clipped.size() * 2];
+        for (int i = 0; i < clipped.size(); ++i) {
+            edges[2 * i] = clipped.get(i).x;
+            edges[2 * i + 1] = clipped.get(i).x + clipped.get(i).width;
+        }
+        Arrays.sort(edges);
+
+        int ignored = 0;
+        final int[][] spans = new int[clipped.size()][];
+        for (int i = 0; i + 1 < edges.length; ++i) {
+            final int sliceWidth = edges[i + 1] - edges[i];
+            if (sliceWidth == 0) {
+                continue;
+            }
+            // the vertical spans of the regions covering the slice, merged
+            int count = 0;
+            for (final Rectangle region : clipped) {
+                if (region.x <= edges[i] && region.x + region.width >= edges[i + 1]) {
+                    spans[count++] = new int[] { region.y, region.y + region.height };
+                }
+            }
+            Arrays.sort(spans, 0, count, SPAN_START_ORDER);
+            int covered = 0;
+            int end = Integer.MIN_VALUE;
+            for (int j = 0; j < count; ++j) {
+                final int start = Math.max(spans[j][0], end);
+                if (spans[j][1] > start) {
+                    covered += spans[j][1] - start;
+                    end = spans[j][1];
+                }
+            }
+            ignored += covered * sliceWidth;
+        }
+        return width * height - ignored;
+    }
+
+    private static int[] getPixels(final BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    private static BufferedImage decode(final byte[] png, final String source) throws IOException {
+        final BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        if (image == null) {
+            throw new IOException(source + " is not a readable image");
+        }
+        return image;
+    }
+
+    private static void write(final byte[] content, final File file) throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        final OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(content);
+        }
+        finally {
+            IOUtils.closeQuietly(os);
+        }
+    }
+
+    /**
+     * The result of a comparison.
+     */
+    public static class Result {
+        private final int _mismatches;
+        private final int _compared;
+        private final BufferedImage _diffImage;
+        private final boolean _sizeMismatch;
+        private final boolean _newBaseline;
+
+        Result(final int mismatches, final int compared, final BufferedImage diffImage, final boolean sizeMismatch) {
+            this(mismatches, compared, diffImage, sizeMismatch, false);
+        }
+
+        Result(final int mismatches, final int compared, final BufferedImage diffImage, final boolean sizeMismatch,
+                final boolean newBaseline) {
+            _mismatches = mismatches;
+            _compared = compared;
+            _diffImage = diffImage;
+            _sizeMismatch = sizeMismatch;
+            _newBaseline = newBaseline;
+        }
+
+        /**
+         * Indicates if no compared pixel differs. Also true when the baseline has just been written,
+         * see {@link #isNewBaseline()}.
+         * @return true/false
+         */
+        public boolean isIdentical() {
+            return _mismatches == 0;
+        }
+
+        /**
+         * Indicates if the images don't have the same size. All pixels are then considered as different.
+         * @return true/false
+         */
+        public boolean isSizeMismatch() {
+            return _sizeMismatch;
+        }
+
+        /**
+         * Indicates if the baseline didn't exist and has been written from the screenshot: nothing has been compared.
+         * @return true/false
+         */
+        public boolean isNewBaseline() {
+            return _newBaseline;
+        }
+
+        public int getMismatchingPixels() {
+            return _mismatches;
+        }
+
+        /**
+         * Gets the number of pixels outside of the ignored regions.
+         * @return the number of compared pixels
+         */
+        public int getComparedPixels() {
+            return _compared;
+        }
+
+        /**
+         * Gets the ratio of the compared pixels that differ.
+         * @return a value between 0 and 1
+         */
+        public double getMismatchRatio() {
+            return _compared == 0 ? 0 : (double) _mismatches / _compared;
+        }
+
+        /**
+         * Gets the image showing the differences in red on a pale version of the baseline.
+         * @return <code>null</code> if the images are identical or don't have the same size
+         */
+        public BufferedImage getDiffImage() {
+            return _diffImage;
+        }
+
+        /**
+         * Writes the diff image as PNG, if any.
+         * @param file the file to write
+         * @throws IOException
+         */
+        public void writeDiffImage(final File file) throws IOException {
+            if (_diffImage != null) {
+                file.getAbsoluteFile().getParentFile().mkdirs();
+                ImageIO.write(_diffImage, "png", file);
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package datameer.webdriver.goodies;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
@@ -9,10 +10,14 @@ import java.lang.annotation.Target;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.junit.Ignore;
 import org.junit.runner.Description;
@@ -63,14 +68,45 @@ public class SimpleWebDriverRunner extends Suite {
 	
     private final ArrayList<Runner> _runners = new ArrayList<Runner>();
     private final static List<WebDriverDefinition> _driverDefinitions = createDriversList();
-    private static CurrentExecutionInfo _currentExecutionInfo; // as thread local when we want to run parallel tests
+    private final static Map<String, WebDriverDefinition> _driverDefinitionsByName = indexByName(_driverDefinitions);
+    // inheritable: a @Test(timeout=...) runs the test in a child thread that must use the same driver
+    private final static ThreadLocal<CurrentExecutionInfo> _currentExecutionInfo = new InheritableThreadLocal<CurrentExecutionInfo>() {
+        @Override
+        protected CurrentExecutionInfo initialValue() {
+            return new CurrentExecutionInfo();
+        }
+    };
+    private final static FailureArtifactCollector _failureArtifactCollector = FailureArtifactCollector.fromConfiguration();
+    private final static DriverReaper _driverReaper = DriverReaper.fromConfiguration();
+    private final static CommandWatchdog _commandWatchdog = CommandWatchdog.fromConfiguration(_driverReaper);
+    private final static File _profilingFolder = PageLoadProfile.getProfilingFolder();
+    private final static AdaptiveTimeouts _adaptiveTimeouts = AdaptiveTimeouts.fromConfiguration();
+    static {
+        // report once for the whole run rather than after each class
+        Runtime.getRuntime().addShutdownHook(new Thread("webdriver-goodies-report") {
+            @Override
+            public void run() {
+                printRunReport();
+            }
+        });
+    }
 
     public SimpleWebDriverRunner(final Class<?> klass) throws Throwable {
+        this(klass, _driverDefinitions);
+    }
+
+    /**
+     * Builds a runner for a subset of the configured drivers.
+     * @param klass the test class
+     * @param driverDefinitions the drivers to run the tests with
+     * @throws Throwable
+     */
+    protected SimpleWebDriverRunner(final Class<?> klass, final List<WebDriverDefinition> driverDefinitions) throws Throwable {
         super(klass, new ArrayList<Runner>());
 
         initCurrentExecutionInfo();
 
-        for (final WebDriverDefinition def : _driverDefinitions) {
+        for (final WebDriverDefinition def : driverDefinitions) {
             _runners.add(buildClassRunner(klass, def));
         }
         getChildren().addAll(_runners);
@@ -90,10 +126,7 @@ public class SimpleWebDriverRunner extends Suite {
     }
 
     protected void initCurrentExecutionInfo() {
-        if (_currentExecutionInfo == null) {
-            _currentExecutionInfo = new CurrentExecutionInfo();
-        }
-        _currentExecutionInfo.setRunner(this);
+        getCurrentExecutionInfo().setRunner(this);
     }
 
 	private static List<WebDriverDefinition> createDriversList() {
@@ -121,13 +154,29 @@ public class SimpleWebDriverRunner extends Suite {
 		return definitions;
 	}
 
+    private static Map<String, WebDriverDefinition> indexByName(final List<WebDriverDefinition> definitions) {
+        final Map<String, WebDriverDefinition> map = new HashMap<String, WebDriverDefinition>();
+        for (final WebDriverDefinition definition : definitions) {
+            map.put(definition.getKey().getName(), definition);
+        }
+        return map;
+    }
+
+    /**
+     * Gets the drivers configured in tests.properties.
+     * @return the definitions
+     */
+    static List<WebDriverDefinition> getDriverDefinitions() {
+        return _driverDefinitions;
+    }
+
     /**
      * Gets the {@link WebDriver} instance currently used
      * or build a new one if none already exists.
      * @return an instance
      */
 	public static WebDriver getDriver() {
-		return _currentExecutionInfo.getDriverInternal();
+		return getCurrentExecutionInfo().getDriverInternal();
 	}
 
 	/**
@@ -135,7 +184,7 @@ public class SimpleWebDriverRunner extends Suite {
 	 * @return <code>null</code> if none
 	 */
     public static WebDriver getCurrentDriver() {
-        return _currentExecutionInfo.getCurrentDriver();
+        return getCurrentExecutionInfo().getCurrentDriver();
     }
 
     /**
@@ -143,33 +192,73 @@ public class SimpleWebDriverRunner extends Suite {
      */
     @Override
     public void filter(final Filter filter) throws NoTestsRemainException {
-        boolean atLeastOne = false;
-        for (final Runner runner : getChildren()) {
-            final BlockJUnit4ClassRunner junit4Runner = (BlockJUnit4ClassRunner) runner;
+        for (final Iterator<Runner> iter = getChildren().iterator(); iter.hasNext();) {
+            final BlockJUnit4ClassRunner junit4Runner = (BlockJUnit4ClassRunner) iter.next();
             try {
                 junit4Runner.filter(filter);
-                atLeastOne = true;
             }
             catch (final NoTestsRemainException e) {
-                // nothing
+                // its @BeforeClass and @AfterClass methods must not run for nothing
+                iter.remove();
+                _runners.remove(junit4Runner);
             }
         }
 
-        if (!atLeastOne) {
+        if (getChildren().isEmpty()) {
             throw new NoTestsRemainException();
         }
     }
 
     @Override
     public void run(final RunNotifier notifier) {
+        for (final Runner runner : getChildren()) {
+            final WebDriverClassRunner classRunner = (WebDriverClassRunner) runner;
+            RunTelemetry.getInstance().testsQueued(classRunner.getName(), classRunner.getTestMethods().size());
+        }
+
+        final RunListener listener = createListener();
+        notifier.addListener(listener);
+        try {
+            super.run(notifier);
+        }
+        finally {
+            // don't get notified for the tests of other classes when run within a suite
+            notifier.removeListener(listener);
+        }
 
-        final RunListener listener = new RunListener() {
-            private final Map<Description, Failure> failures = new HashMap<Description, Failure>();
+        flushFailureArtifacts();
+		getCurrentExecutionInfo().closeDriverQuietly();
+		drainDriverReaper();
+		saveAdaptiveTimeouts();
+    }
+
+    /**
+     * Creates the listener managing the drivers for the tests of this class.
+     * @return the listener
+     */
+    RunListener createListener() {
+        return createListener(false);
+    }
+
+    /**
+     * Creates the listener managing the drivers for the tests of this class.
+     * @param deferFinish <code>true</code> to only record the finished test: collecting the failure artifacts
+     * and releasing the driver can block, while JUnit calls the listeners holding the notifier's lock.
+     * The caller then calls {@link #finishDeferredTest()} after each test
+     * @return the listener
+     */
+    RunListener createListener(final boolean deferFinish) {
+        return new RunListener() {
+            private final Map<Description, Failure> failures = new ConcurrentHashMap<Description, Failure>();
 
             @Override
             public void testStarted(final Description description) throws Exception {
                 final WebDriverDefinition def = getDriverDefinition(description);
-                _currentExecutionInfo.setNextDriver(def);
+                final CurrentExecutionInfo currentExecutionInfo = getCurrentExecutionInfo();
+                currentExecutionInfo.setRunner(SimpleWebDriverRunner.this);
+                currentExecutionInfo.setNextDriver(def);
+                currentExecutionInfo.startLogCapture(def);
+                RunTelemetry.getInstance().testStarted(def.getName());
                 notifyTestStarted(description.getTestClass(), description.getMethodName(), def);
             }
 
@@ -186,23 +275,192 @@ public class SimpleWebDriverRunner extends Suite {
             @Override
             public void testIgnored(final Description description) throws Exception {
                 final String ignoreReason = description.getAnnotation(Ignore.class).value();
-                notifyTestIgnored(description.getTestClass(), description.getMethodName(), ignoreReason, getDriverDefinition(description));
+                final WebDriverDefinition def = getDriverDefinition(description);
+                RunTelemetry.getInstance().testIgnored(def.getName());
+                notifyTestIgnored(description.getTestClass(), description.getMethodName(), ignoreReason, def);
             }
 
             @Override
             public void testFinished(final Description description) throws Exception {
-                final Failure failure = failures.get(description);
+                // remove it: the listener lives as long as the whole run
+                final Failure failure = failures.remove(description);
                 final Throwable failureCause = failure != null ? failure.getException() : null;
-                notifyTestFinished(description.getTestClass(), description.getMethodName(), failureCause);
-
-                _currentExecutionInfo.release(getDriverDefinition(description));
+                final WebDriverDefinition def = getDriverDefinition(description);
+                RunTelemetry.getInstance().testFinished(def.getName(), failureCause != null);
+                if (deferFinish) {
+                    getCurrentExecutionInfo().setFinishedTest(description, failureCause);
+                }
+                else {
+                    finishTest(description, def, failureCause);
+                }
             }
         };
-        
-        notifier.addListener(listener);
-        super.run(notifier);
-    	
-		_currentExecutionInfo.closeDriverQuietly();
+    }
+
+    private void finishTest(final Description description, final WebDriverDefinition def, final Throwable failureCause) {
+        if (failureCause != null) {
+            collectFailureArtifacts(description);
+        }
+        writePageLoadProfile(description);
+        notifyTestFinished(description.getTestClass(), description.getMethodName(), failureCause);
+        getCurrentExecutionInfo().release(def);
+        // threads started between the tests must not capture in this test's buffer
+        LogCaptureHandler.capture(null);
+    }
+
+    /**
+     * Collects the failure artifacts and releases the driver of the test that has just finished
+     * on the current thread, if its listener has been created with {@link #createListener(boolean)} deferring it.
+     */
+    static void finishDeferredTest() {
+        final CurrentExecutionInfo currentExecutionInfo = getCurrentExecutionInfo();
+        final Description description = currentExecutionInfo._finishedTest;
+        if (description == null) {
+            return;
+        }
+        final Throwable failureCause = currentExecutionInfo._finishedTestFailure;
+        currentExecutionInfo.setFinishedTest(null, null);
+        final SimpleWebDriverRunner runner = currentExecutionInfo._webDriverRunner;
+        runner.finishTest(description, runner.getDriverDefinition(description.getAnnotation(DriverKey.class)), failureCause);
+    }
+
+    private static void collectFailureArtifacts(final Description description) {
+        final CurrentExecutionInfo currentExecutionInfo = getCurrentExecutionInfo();
+        final String testName = description.getTestClass().getName() + "." + description.getMethodName();
+        final String log = currentExecutionInfo.getCapturedLog();
+        if (_failureArtifactCollector != null) {
+            _failureArtifactCollector.collect(currentExecutionInfo.getCurrentDriver(), testName, log);
+        }
+        else if (log != null) {
+            System.err.println("Log of failed test " + testName + ":");
+            System.err.print(log);
+        }
+    }
+
+    /**
+     * Waits until the artifacts of the failed tests have been written.
+     */
+    static void flushFailureArtifacts() {
+        if (_failureArtifactCollector != null) {
+            _failureArtifactCollector.flush();
+        }
+    }
+
+    /**
+     * Allows as many drivers to quit at the same time as tests run in parallel.
+     * @param parallelTests the number of tests running at the same time
+     */
+    static void ensureQuitSlots(final int parallelTests) {
+        _driverReaper.ensureSlots(parallelTests);
+    }
+
+    /**
+     * Waits until the drivers handed over to the reaper have quit.
+     */
+    static void drainDriverReaper() {
+		_driverReaper.drain();
+    }
+
+    /**
+     * Gets the timeouts learned from the previous runs.
+     * @return <code>null</code> if adaptive timeouts are disabled
+     */
+    static AdaptiveTimeouts getAdaptiveTimeouts() {
+        return _adaptiveTimeouts;
+    }
+
+    /**
+     * Stores the test durations for the next runs.
+     */
+    static void saveAdaptiveTimeouts() {
+        if (_adaptiveTimeouts != null) {
+            _adaptiveTimeouts.save();
+        }
+    }
+
+    /**
+     * Reports about the quit drivers and the tests that exceeded their learned timeout, at the end of the run.
+     */
+    private static void printRunReport() {
+        _driverReaper.drain();
+        _driverReaper.printReport(System.out);
+        if (_adaptiveTimeouts != null) {
+            _adaptiveTimeouts.save();
+            _adaptiveTimeouts.printReport(System.out);
+        }
+    }
+
+    /**
+     * Gets the runners for the different drivers, each one running all tests of the class.
+     * @return the runners
+     */
+    List<Runner> getClassRunners() {
+        return getChildren();
+    }
+
+    /**
+     * Keeps only the runners of the HtmlUnit drivers or only those of the real browsers.
+     * @param htmlUnit <code>true</code> to keep the HtmlUnit drivers
+     * @return <code>false</code> if no runner remains
+     */
+    boolean retainDrivers(final boolean htmlUnit) {
+        for (final Iterator<Runner> iter = getChildren().iterator(); iter.hasNext();) {
+            final WebDriverClassRunner runner = (WebDriverClassRunner) iter.next();
+            if (getDriverDefinition(runner.getDriverKey()).isHtmlUnit() != htmlUnit) {
+                iter.remove();
+                _runners.remove(runner);
+            }
+        }
+        return !getChildren().isEmpty();
+    }
+
+    /**
+     * Prepares a thread to run tests in parallel with other ones: it will use its own drivers.
+     */
+    static void initWorkerThread() {
+        initWorkerThread(new CurrentExecutionInfo());
+    }
+
+    /**
+     * Prepares a thread to run tests with the execution info released by a previous thread,
+     * reusing its log buffer.
+     * @param executionInfo the execution info returned by {@link #releaseWorkerThread()}
+     */
+    static void initWorkerThread(final CurrentExecutionInfo executionInfo) {
+        _currentExecutionInfo.set(executionInfo);
+    }
+
+    /**
+     * Quits the driver of a thread initialized with {@link #initWorkerThread()}.
+     * @return the execution info of the thread, without driver
+     */
+    static CurrentExecutionInfo releaseWorkerThread() {
+        final CurrentExecutionInfo executionInfo = getCurrentExecutionInfo();
+        executionInfo.closeDriverQuietly();
+        LogCaptureHandler.capture(null);
+        _currentExecutionInfo.remove();
+        return executionInfo;
+    }
+
+    private static CurrentExecutionInfo getCurrentExecutionInfo() {
+        return _currentExecutionInfo.get();
+    }
+
+    private void writePageLoadProfile(final Description description) {
+        final WebDriver driver = CommandWatchdog.unwrap(getCurrentExecutionInfo().getCurrentDriver());
+        if (_profilingFolder == null || !(driver instanceof BetterHtmlUnitDriver)) {
+            return;
+        }
+        final PageLoadProfile profile = ((BetterHtmlUnitDriver) driver).getProfile();
+        final String fileName = (description.getTestClass().getName() + "." + description.getMethodName()).replaceAll("[^\\w.-]", "_");
+        try {
+            profile.writeHar(new File(_profilingFolder, fileName + ".har"));
+        }
+        catch (final IOException e) {
+            System.err.println("Error writing page load profile of " + description.getDisplayName() + ":");
+            e.printStackTrace(System.err);
+        }
+        profile.clear();
     }
 
     protected void notifyTestStarted(final Class<?> testClass, final String methodName, final WebDriverDefinition def) {
@@ -233,10 +491,13 @@ public class SimpleWebDriverRunner extends Suite {
     protected static class WebDriverDefinition {
     	private static final String KEY_BINARY = "bin";
         private static final Object KEY_REMOTEURL = "remoteDriverUrl";
+        private static final String KEY_LOG_BUFFER_SIZE = "logBufferSize";
         private final String _name;
     	private final Map<String, String> _options;
         private File _firefoxEmptyBookmarksFile;
         private final DriverKey _driverKey;
+        private final int _logBufferSize;
+        private final Map<WebDriver, FirefoxBinary> _firefoxBinaries = Collections.synchronizedMap(new WeakHashMap<WebDriver, FirefoxBinary>());
         
         /**
          * Used to add information to the JUnit test {@link Description}.
@@ -273,6 +534,7 @@ public class SimpleWebDriverRunner extends Suite {
             _name = name;
             _options = options;
             _driverKey = new DriverKeyImpl(name);
+            _logBufferSize = readLogBufferSize();
             
             if (isFirefox()) {
                 try {
@@ -319,6 +581,7 @@ public class SimpleWebDriverRunner extends Suite {
                 profile.setPreference("browser.bookmarks.file", _firefoxEmptyBookmarksFile.getAbsolutePath());
 
                 driver = new FirefoxDriver(ffBin, profile);
+                _firefoxBinaries.put(driver, ffBin);
 //              profile.setPreference("network.proxy.http_port", 9090);
 //              profile.setPreference("network.proxy.http", "localhost");
 //                profile.setPreference("network.proxy.type", 1);
@@ -342,6 +605,49 @@ public class SimpleWebDriverRunner extends Suite {
             return driver;
         }
 
+        /**
+         * Kills the browser process of a driver whose {@link WebDriver#quit()} hangs.
+         * @param driver a driver built by this definition
+         * @return <code>false</code> if the process can't be killed, for instance because it is remote
+         */
+        protected boolean killBrowser(final WebDriver driver) {
+            final FirefoxBinary ffBin = _firefoxBinaries.remove(driver);
+            if (ffBin != null) {
+                ffBin.quit();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Gets the size of the buffer capturing the log of each test, see {@link LogRingBuffer}.
+         * @return 0 if the log shouldn't be captured
+         */
+        public int getLogBufferSize() {
+            return _logBufferSize;
+        }
+
+        private int readLogBufferSize() {
+            final String size = _options.get(KEY_LOG_BUFFER_SIZE);
+            if (size == null) {
+                return TestsConfiguration.getInstance().getIntProperty(KEY_LOG_BUFFER_SIZE, 0);
+            }
+            try {
+                return Integer.parseInt(size.trim());
+            }
+            catch (final NumberFormatException e) {
+                throw new RuntimeException("Invalid integer value for " + _name + "." + KEY_LOG_BUFFER_SIZE + ": " + size, e);
+            }
+        }
+
+        /**
+         * Indicates if this defines one of the (fast) {@link BetterHtmlUnitDriver}s.
+         * @return true/false
+         */
+        public boolean isHtmlUnit() {
+            return getName().toUpperCase().startsWith("HU_");
+        }
+
         private boolean isFirefox() {
             return getName().toUpperCase().startsWith("FF");
         }
@@ -376,7 +682,7 @@ public class SimpleWebDriverRunner extends Suite {
          * Indicate if this defines a {@link RemoteWebDriver}.
          * @return true/false
          */
-        private boolean isRemote() {
+        boolean isRemote() {
             return _options.containsKey(KEY_REMOTEURL);
         }
 
@@ -396,6 +702,9 @@ public class SimpleWebDriverRunner extends Suite {
 	    private WebDriver _driver;
         private WebDriverDefinition _driverDefinition, _nextDriverDefinition;
         private SimpleWebDriverRunner _webDriverRunner;
+        private LogRingBuffer _logBuffer;
+        private Description _finishedTest;
+        private Throwable _finishedTestFailure;
 
         void setRunner(final SimpleWebDriverRunner webDriverRunner) {
             _webDriverRunner = webDriverRunner;
@@ -404,14 +713,12 @@ public class SimpleWebDriverRunner extends Suite {
         private WebDriver getDriverInternal() {
             if (_driver == null || _driverDefinition != _nextDriverDefinition) {
                 if (_driver != null) {
-                    try {
-                        _driver.quit();
-                    }
-                    catch (final Exception e) {
-                        // ignore
-                    }
+                    quitDriver();
                 }
-                _driver = _webDriverRunner.buildDriver(_nextDriverDefinition);
+                final long start = System.nanoTime();
+                final WebDriver driver = _webDriverRunner.buildDriver(_nextDriverDefinition);
+                RunTelemetry.getInstance().driverBuilt(System.nanoTime() - start);
+                _driver = _commandWatchdog != null ? _commandWatchdog.watch(driver, _nextDriverDefinition) : driver;
                 TestsConfiguration.getInstance().setCurrentDriver(_nextDriverDefinition.getName());
                 
                 _driverDefinition = _nextDriverDefinition;
@@ -424,21 +731,54 @@ public class SimpleWebDriverRunner extends Suite {
             _nextDriverDefinition = driverDefinition;
         }
 
+        void setFinishedTest(final Description description, final Throwable failureCause) {
+            _finishedTest = description;
+            _finishedTestFailure = failureCause;
+        }
+
+        /**
+         * Starts capturing the log of a test, in a buffer reused from test to test.
+         * @param driverDefinition the driver of the test, defining the buffer size
+         */
+        void startLogCapture(final WebDriverDefinition driverDefinition) {
+            final int size = driverDefinition.getLogBufferSize();
+            if (size <= 0) {
+                _logBuffer = null;
+            }
+            else if (_logBuffer == null || _logBuffer.getCapacity() != size) {
+                LogCaptureHandler.install();
+                _logBuffer = new LogRingBuffer(size);
+            }
+            else {
+                _logBuffer.reset();
+            }
+            LogCaptureHandler.capture(_logBuffer);
+        }
+
+        /**
+         * Gets the log captured since the start of the current test.
+         * @return <code>null</code> if none
+         */
+        String getCapturedLog() {
+            return _logBuffer != null && !_logBuffer.isEmpty() ? _logBuffer.toString() : null;
+        }
+
         protected void closeDriverQuietly() {
             if (_driver != null) {
-                try {
-                    _driver.quit();
-                }
-                catch (final Exception e) {
-                    // ignore it, happens for instance when a @Test(timeout=...) has failed timed out
-                    // see http://code.google.com/p/selenium/issues/detail?id=1998
-                    System.err.println("Error quitting the driver:");
-                    e.printStackTrace(System.err);
-                }
+                quitDriver();
                 _driver = null;
             }
         }
 
+        private void quitDriver() {
+            RunTelemetry.getInstance().driverReleased();
+            // nothing to do if the watchdog has already killed it
+            if (!CommandWatchdog.isKilled(_driver)) {
+                // quit in the background, the next test doesn't have to wait for it
+                _driverReaper.quit(CommandWatchdog.unwrap(_driver), _driverDefinition);
+            }
+        }
+
         void release(final WebDriverDefinition browserVersion) {
             closeDriverQuietly();
         }
@@ -458,12 +798,11 @@ public class SimpleWebDriverRunner extends Suite {
     }
 
     private WebDriverDefinition getDriverDefinition(final DriverKey driverKey) {
-        for (final WebDriverDefinition driverDefinition : _driverDefinitions) {
-            if (driverDefinition.getKey().equals(driverKey)) {
-                return driverDefinition;
-            }
+        final WebDriverDefinition driverDefinition = _driverDefinitionsByName.get(driverKey.getName());
+        if (driverDefinition == null) {
+            throw new RuntimeException("No WebDriverDefinition found for " + driverKey.getName());
         }
-        throw new RuntimeException("No WebDriverDefinition found for " + driverKey.getName());
+        return driverDefinition;
     }
 }
 
@@ -1,5 +1,6 @@
 package datameer.webdriver.goodies;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Inet4Address;
@@ -24,7 +25,9 @@ import org.apache.commons.io.IOUtils;
 public class TestsConfiguration {
     private static final TestsConfiguration INSTANCE = new TestsConfiguration();
     private final Map<String, String> _rawProperties;
-    private String _currentDriver;
+    // per thread when tests run in parallel, inherited by the thread of a @Test(timeout=...)
+    private final ThreadLocal<String> _currentDriver = new InheritableThreadLocal<String>();
+    private FixtureServer _fixtureServer;
 
     public static TestsConfiguration getInstance() {
         return INSTANCE;
@@ -88,13 +91,36 @@ public class TestsConfiguration {
 
 
     /**
-     * Return the configured url
+     * Return the configured url, or the one of the embedded {@link FixtureServer}
+     * (started on first call) if "fixtureServer.folder" is configured.
      * @return
      */
     public String getTestServer() {
+        final FixtureServer fixtureServer = getFixtureServer();
+        if (fixtureServer != null) {
+            return "http://" + getHostAddress() + ":" + fixtureServer.getPort() + "/";
+        }
         return getAndExpand("config.baseUrl");
     }
 
+    private synchronized FixtureServer getFixtureServer() {
+        if (_fixtureServer == null) {
+            final String folder = getProperty("fixtureServer.folder", null);
+            if (folder == null) {
+                return null;
+            }
+            try {
+                final FixtureServer fixtureServer = new FixtureServer(new File(folder), getIntProperty("fixtureServer.port", 0));
+                fixtureServer.start();
+                _fixtureServer = fixtureServer;
+            }
+            catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return _fixtureServer;
+    }
+
     private String getAndExpand(final String key) {
         String value = _rawProperties.get(key);
         if (value != null && value.contains("$localhost")) {
@@ -138,8 +164,9 @@ public class TestsConfiguration {
     }
 
     private String getCurrentProperty(final String propertyName) {
-        if (_currentDriver != null) {
-            String s = _rawProperties.get(_currentDriver + "." + propertyName);
+        final String currentDriver = _currentDriver.get();
+        if (currentDriver != null) {
+            String s = _rawProperties.get(currentDriver + "." + propertyName);
             if (s != null) {
                 return s;
             }
@@ -147,7 +174,48 @@ public class TestsConfiguration {
         return _rawProperties.get(propertyName);
     }
 
+    /**
+     * Gets a property from the config file.
+     * @param propertyName the name of the property
+     * @param defaultValue the value to use if the property isn't set
+     * @return the value
+     */
+    public String getProperty(final String propertyName, final String defaultValue) {
+        final String value = _rawProperties.get(propertyName);
+        return value != null ? value.trim() : defaultValue;
+    }
+
+    /**
+     * Gets an integer property from the config file.
+     * @param propertyName the name of the property
+     * @param defaultValue the value to use if the property isn't set
+     * @return the value
+     */
+    public int getIntProperty(final String propertyName, final int defaultValue) {
+        final String value = getProperty(propertyName, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        }
+        catch (final NumberFormatException e) {
+            throw new RuntimeException("Invalid integer value for " + propertyName + ": " + value, e);
+        }
+    }
+
+    /**
+     * Gets a boolean property from the config file.
+     * @param propertyName the name of the property
+     * @param defaultValue the value to use if the property isn't set
+     * @return the value
+     */
+    public boolean getBooleanProperty(final String propertyName, final boolean defaultValue) {
+        final String value = getProperty(propertyName, null);
+        return value != null ? Boolean.parseBoolean(value) : defaultValue;
+    }
+
     public void setCurrentDriver(final String name) {
-        _currentDriver = name;
+        _currentDriver.set(name);
     }
 }
@@ -0,0 +1,221 @@
+package datameer.webdriver.goodies;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Ignore;
+import org.junit.internal.builders.IgnoredClassRunner;
+import org.junit.runner.Description;
+import org.junit.runner.Runner;
+import org.junit.runner.manipulation.Filter;
+import org.junit.runner.manipulation.NoTestsRemainException;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runners.Suite;
+import org.junit.runners.model.InitializationError;
+
+/**
+ * A suite running the tests of all its classes first with the (fast) HtmlUnit drivers
+ * and only then with the real browsers. Usage:
+ * <pre>
+ * &#064;RunWith(TieredWebDriverSuite.class)
+ * &#064;SuiteClasses({ LoginTest.class, SearchTest.class })
+ * public class AllTests {
+ * }
+ * </pre>
+ * The classes must be annotated with &#064;RunWith(SimpleWebDriverRunner.class) or a subclass of it.
+ * What is run with the real browsers is configured in tests.properties:
+ * <pre>
+ * # threshold (default): run the real browsers only if at least this ratio of the HtmlUnit tests passed
+ * tiers.mode=threshold
+ * tiers.threshold=1.0
+ * # uncovered: run with the real browsers only the tests that failed or were ignored with HtmlUnit
+ * # (all tests when no HtmlUnit driver is configured)
+ * tiers.mode=uncovered
+ * </pre>
+ * Tests that are not run with a real browser are reported as ignored.
+ * @version $Revision:  $
+ */
+public class TieredWebDriverSuite extends Suite {
+    private final List<Runner> _ignoredClassRunners = new ArrayList<Runner>();
+    private final List<Runner> _htmlUnitRunners = new ArrayList<Runner>();
+    private final List<Runner> _browserRunners = new ArrayList<Runner>();
+    private final HtmlUnitTierResults _htmlUnitResults = new HtmlUnitTierResults();
+    private final boolean _uncoveredOnly;
+    private final double _threshold;
+
+    public TieredWebDriverSuite(final Class<?> klass) throws Throwable {
+        super(klass, new ArrayList<Runner>());
+
+        final TestsConfiguration config = TestsConfiguration.getInstance();
+        _uncoveredOnly = "uncovered".equalsIgnoreCase(config.getProperty("tiers.mode", "threshold"));
+        _threshold = Double.parseDouble(config.getProperty("tiers.threshold", "1.0"));
+
+        // each class is run by 2 instances of the runner of its @RunWith, one per tier
+        for (final Class<?> testClass : getSuiteClasses(klass)) {
+            if (testClass.getAnnotation(Ignore.class) != null) {
+                _ignoredClassRunners.add(new IgnoredClassRunner(testClass));
+                continue;
+            }
+            final SimpleWebDriverRunner htmlUnitRunner = ParallelWebDriverSuite.buildClassRunner(testClass);
+            if (htmlUnitRunner.retainDrivers(true)) {
+                _htmlUnitRunners.add(htmlUnitRunner);
+            }
+            final SimpleWebDriverRunner browserRunner = ParallelWebDriverSuite.buildClassRunner(testClass);
+            if (browserRunner.retainDrivers(false)) {
+                _browserRunners.add(browserRunner);
+            }
+        }
+        getChildren().addAll(_ignoredClassRunners);
+        getChildren().addAll(_htmlUnitRunners);
+        getChildren().addAll(_browserRunners);
+    }
+
+    /**
+     * Gets the classes listed in the &#064;SuiteClasses annotation of a suite.
+     */
+    static Class<?>[] getSuiteClasses(final Class<?> klass) throws InitializationError {
+        final SuiteClasses annotation = klass.getAnnotation(SuiteClasses.class);
+        if (annotation == null) {
+            throw new InitializationError("class '" + klass.getName() + "' must have a SuiteClasses annotation");
+        }
+        return annotation.value();
+    }
+
+    /**
+     * Children are run in order: all HtmlUnit runners first, then the real browser ones.
+     */
+    @Override
+    protected void runChild(final Runner runner, final RunNotifier notifier) {
+        if (_ignoredClassRunners.contains(runner)) {
+            runner.run(notifier);
+        }
+        else if (_htmlUnitRunners.contains(runner)) {
+            notifier.addListener(_htmlUnitResults);
+            try {
+                runner.run(notifier);
+            }
+            finally {
+                notifier.removeListener(_htmlUnitResults);
+            }
+        }
+        else if (_uncoveredOnly && !_htmlUnitRunners.isEmpty()) {
+            runUncovered(runner, notifier);
+        }
+        else if (_htmlUnitResults.getPassRatio() >= _threshold) {
+            runner.run(notifier);
+        }
+        else {
+            System.out.println("Skipping " + runner.getDescription().getDisplayName() + " with real browsers: only "
+                + Math.round(_htmlUnitResults.getPassRatio() * 100) + "% of the HtmlUnit tests passed");
+            fireTestsIgnored(getTests(runner.getDescription()), notifier);
+        }
+    }
+
+    private void runUncovered(final Runner runner, final RunNotifier notifier) {
+        final List<Description> allTests = getTests(runner.getDescription());
+        try {
+            ((SimpleWebDriverRunner) runner).filter(new Filter() {
+                @Override
+                public boolean shouldRun(final Description description) {
+                    return _htmlUnitResults.isUncovered(description);
+                }
+
+                @Override
+                public String describe() {
+                    return "tests not covered by HtmlUnit";
+                }
+            });
+        }
+        catch (final NoTestsRemainException e) {
+            fireTestsIgnored(allTests, notifier);
+            return;
+        }
+        allTests.removeAll(getTests(runner.getDescription()));
+        fireTestsIgnored(allTests, notifier);
+        runner.run(notifier);
+    }
+
+    private static List<Description> getTests(final Description description) {
+        final List<Description> tests = new ArrayList<Description>();
+        if (description.isTest()) {
+            tests.add(description);
+        }
+        else {
+            for (final Description child : description.getChildren()) {
+                tests.addAll(getTests(child));
+            }
+        }
+        return tests;
+    }
+
+    private static void fireTestsIgnored(final List<Description> tests, final RunNotifier notifier) {
+        for (final Description test : tests) {
+            notifier.fireTestIgnored(test);
+        }
+    }
+
+    /**
+     * Identifies a test method independently of the driver: the class name and the
+     * method name without the " [driver]" suffix added by {@link WebDriverClassRunner}.
+     */
+    static String getMethodKey(final Description description) {
+        String methodName = description.getMethodName();
+        final int index = methodName.indexOf(" [");
+        if (index != -1) {
+            methodName = methodName.substring(0, index);
+        }
+        return description.getTestClass().getName() + "#" + methodName;
+    }
+
+    /**
+     * Collects the results of the HtmlUnit tier.
+     */
+    private static class HtmlUnitTierResults extends RunListener {
+        private final Set<String> _uncovered = new HashSet<String>();
+        private boolean _currentFailed;
+        private int _finished, _passed;
+
+        @Override
+        public void testStarted(final Description description) throws Exception {
+            _currentFailed = false;
+        }
+
+        @Override
+        public void testFailure(final Failure failure) throws Exception {
+            _currentFailed = true;
+        }
+
+        @Override
+        public void testAssumptionFailure(final Failure failure) {
+            _currentFailed = true;
+        }
+
+        @Override
+        public void testIgnored(final Description description) throws Exception {
+            _uncovered.add(getMethodKey(description));
+        }
+
+        @Override
+        public void testFinished(final Description description) throws Exception {
+            ++_finished;
+            if (_currentFailed) {
+                _uncovered.add(getMethodKey(description));
+            }
+            else {
+                ++_passed;
+            }
+        }
+
+        double getPassRatio() {
+            return _finished == 0 ? 1 : (double) _passed / _finished;
+        }
+
+        boolean isUncovered(final Description description) {
+            return _uncovered.contains(getMethodKey(description));
+        }
+    }
+}
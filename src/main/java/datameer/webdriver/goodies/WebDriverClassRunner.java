@@ -4,10 +4,14 @@ import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.junit.Test;
 import org.junit.runner.Description;
 import org.junit.runner.manipulation.Filter;
 import org.junit.runner.manipulation.NoTestsRemainException;
+import org.junit.runner.notification.RunNotifier;
 import org.junit.runners.BlockJUnit4ClassRunner;
 import org.junit.runners.model.FrameworkMethod;
 import org.junit.runners.model.InitializationError;
@@ -24,12 +28,25 @@ import datameer.webdriver.goodies.SimpleWebDriverRunner.WebDriverDefinition.Driv
 public class WebDriverClassRunner extends BlockJUnit4ClassRunner {
     private List<FrameworkMethod> _testMethods;
     private final DriverKey _driverKey;
+    // descriptions are requested for each test event, build them only once
+    private final Map<FrameworkMethod, Description> _descriptions = new ConcurrentHashMap<FrameworkMethod, Description>();
+    private final Map<FrameworkMethod, Description> _plainDescriptions = new ConcurrentHashMap<FrameworkMethod, Description>();
+    private static final Statement EMPTY_STATEMENT = new Statement() {
+        @Override
+        public void evaluate() throws Throwable {
+            // nothing
+        }
+    };
 	
     public WebDriverClassRunner(final Class<?> testClass, final DriverKey driverKey) throws InitializationError {
         super(testClass);
         _driverKey = driverKey;
     }
 
+    DriverKey getDriverKey() {
+        return _driverKey;
+    }
+
     @Override
     protected String getName() {
     	return _driverKey.getName();
@@ -68,17 +85,40 @@ public class WebDriverClassRunner extends BlockJUnit4ClassRunner {
      */
     @Override
     protected Description describeChild(final FrameworkMethod method) {
-        final Annotation[] originalAnnotations = method.getAnnotations();
-        final Annotation[] newAnnotations = new Annotation[originalAnnotations.length + 1];
-        System.arraycopy(originalAnnotations, 0, newAnnotations, 0, originalAnnotations.length);
-        newAnnotations[newAnnotations.length - 1] = _driverKey;
-        return Description.createTestDescription(getTestClass().getJavaClass(),
-                testName(method), newAnnotations);
+        Description description = _descriptions.get(method);
+        if (description == null) {
+            final Annotation[] originalAnnotations = method.getAnnotations();
+            final Annotation[] newAnnotations = new Annotation[originalAnnotations.length + 1];
+            System.arraycopy(originalAnnotations, 0, newAnnotations, 0, originalAnnotations.length);
+            newAnnotations[newAnnotations.length - 1] = _driverKey;
+            description = Description.createTestDescription(getTestClass().getJavaClass(),
+                    testName(method), newAnnotations);
+            _descriptions.put(method, description);
+        }
+        return description;
+    }
+
+    /**
+     * Gets the description without browser nickname, as awaited by Eclipse's filter.
+     */
+    private Description describePlain(final FrameworkMethod method) {
+        Description description = _plainDescriptions.get(method);
+        if (description == null) {
+            description = Description.createTestDescription(getTestClass().getJavaClass(), method.getName());
+            _plainDescriptions.put(method, description);
+        }
+        return description;
     }
     
     @Override
     protected Statement methodBlock(final FrameworkMethod method) {
         Statement statement = super.methodBlock(method);
+
+        final AdaptiveTimeouts adaptiveTimeouts = SimpleWebDriverRunner.getAdaptiveTimeouts();
+        if (adaptiveTimeouts != null && getExplicitTimeout(method) == 0) {
+            statement = adaptiveTimeouts.wrap(statement,
+                getTestClass().getName() + "#" + method.getName() + "[" + _driverKey.getName() + "]");
+        }
         
         final NotYetImplemented annotation = readAnnotation(method.getMethod(), NotYetImplemented.class);
         if (annotation != null) {
@@ -87,16 +127,55 @@ public class WebDriverClassRunner extends BlockJUnit4ClassRunner {
 
     	final int tries = getTries(method);
     	if (tries != 1) {
-    		return new StatementWithRetry(statement, tries);
+    		return new StatementWithRetry(statement, tries, _driverKey.getName());
     	}
     	return statement;
     }
 
+    private long getExplicitTimeout(final FrameworkMethod method) {
+        final Test annotation = method.getAnnotation(Test.class);
+        return annotation != null ? annotation.timeout() : 0;
+    }
+
     private int getTries(final FrameworkMethod method) {
         final Retry tries = method.getAnnotation(Retry.class);
         return tries != null ? tries.value() : 1;
     }
 
+    /**
+     * Gets the test methods remaining after filtering.
+     * @return the methods
+     */
+    List<FrameworkMethod> getTestMethods() {
+        return computeTestMethods();
+    }
+
+    /**
+     * Runs a single test, without the class level before and after methods.
+     * Used by the schedulers running the tests of the class themselves.
+     * @param method the test method
+     * @param notifier the notifier
+     */
+    void runTest(final FrameworkMethod method, final RunNotifier notifier) {
+        runChild(method, notifier);
+    }
+
+    /**
+     * Runs the &#064;BeforeClass methods.
+     * @throws Throwable
+     */
+    void runBeforeClasses() throws Throwable {
+        withBeforeClasses(EMPTY_STATEMENT).evaluate();
+    }
+
+    /**
+     * Runs the &#064;AfterClass methods.
+     * @throws Throwable
+     */
+    void runAfterClasses() throws Throwable {
+        withAfterClasses(EMPTY_STATEMENT).evaluate();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -106,29 +185,35 @@ public class WebDriverClassRunner extends BlockJUnit4ClassRunner {
 
         for (final ListIterator<FrameworkMethod> iter = _testMethods.listIterator(); iter.hasNext();) {
             final FrameworkMethod method = iter.next();
-            // compute 2 descriptions to verify if it is the intended test:
+            // use 2 descriptions to verify if it is the intended test:
             // - one "normal", this is what Eclipse's filter awaits when typing Ctrl+X T
             //   when cursor is located on a test method
             // - one with browser nickname, this is what is needed when re-running a test from
             //   the JUnit view
             // as the list of methods is cached, this is what will be returned when computeTestMethods() is called
-            final Description description = Description.createTestDescription(getTestClass().getJavaClass(),
-                method.getName());
-            final Description description2 = Description.createTestDescription(getTestClass().getJavaClass(),
-                testName(method));
-            if (!filter.shouldRun(description) && !filter.shouldRun(description2)) {
+            // both are cached, the second one is also used when running the test
+            if (!filter.shouldRun(describePlain(method)) && !filter.shouldRun(describeChild(method))) {
                 iter.remove();
             }
         }
+        if (_testMethods.isEmpty()) {
+            throw new NoTestsRemainException();
+        }
     }
 }
 
 class StatementWithRetry extends Statement {
 	private final Statement _wrapped;
 	private final int _maxRetries;
+	private final String _driverName;
 	public StatementWithRetry(final Statement statement, final int tries) {
+		this(statement, tries, null);
+	}
+
+	public StatementWithRetry(final Statement statement, final int tries, final String driverName) {
 		_wrapped = statement;
 		_maxRetries = tries;
+		_driverName = driverName;
 	}
 
 	@Override
@@ -140,6 +225,7 @@ class StatementWithRetry extends Statement {
 			}
 			catch (final Throwable t) {
 				// ignore it
+				RunTelemetry.getInstance().retried(_driverName);
 			}
 		}
 		_wrapped.evaluate();
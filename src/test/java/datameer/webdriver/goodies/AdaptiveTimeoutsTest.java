@@ -0,0 +1,72 @@
+package datameer.webdriver.goodies;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link AdaptiveTimeouts}.
+ * @version $Revision:  $
+ */
+public class AdaptiveTimeoutsTest {
+    private File _file;
+
+    @Before
+    public void createFile() throws IOException {
+        _file = File.createTempFile("test-durations", ".properties");
+        _file.delete();
+    }
+
+    @After
+    public void deleteFile() {
+        _file.delete();
+    }
+
+    @Test
+    public void noTimeoutBeforeEnoughSamples() {
+        final AdaptiveTimeouts timeouts = new AdaptiveTimeouts(_file, 3, 100, 3, 10);
+        timeouts.record("test", 1000);
+        timeouts.record("test", 1000);
+        assertEquals(0, timeouts.getTimeout("test"));
+        assertEquals(0, timeouts.getTimeout("other"));
+        timeouts.record("test", 1000);
+        assertEquals(3000, timeouts.getTimeout("test"));
+    }
+
+    @Test
+    public void usesPercentileAndFloor() {
+        final AdaptiveTimeouts timeouts = new AdaptiveTimeouts(_file, 2, 5000, 1, 200);
+        for (int i = 1; i <= 100; ++i) {
+            timeouts.record("test", i * 10);
+        }
+        // 99th percentile of 10..1000 is 990
+        assertEquals(5000, timeouts.getTimeout("test"));
+        timeouts.record("slow", 4000);
+        assertEquals(8000, timeouts.getTimeout("slow"));
+    }
+
+    @Test
+    public void keepsOnlyLatestSamples() {
+        final AdaptiveTimeouts timeouts = new AdaptiveTimeouts(_file, 1, 0, 1, 2);
+        timeouts.record("test", 9000);
+        timeouts.record("test", 100);
+        timeouts.record("test", 200);
+        assertEquals(200, timeouts.getTimeout("test"));
+    }
+
+    @Test
+    public void savesAndLoads() {
+        final AdaptiveTimeouts timeouts = new AdaptiveTimeouts(_file, 2, 0, 2, 10);
+        timeouts.record("a#test[HU_FF]", 100);
+        timeouts.record("a#test[HU_FF]", 300);
+        timeouts.save();
+
+        final AdaptiveTimeouts loaded = new AdaptiveTimeouts(_file, 2, 0, 2, 10);
+        assertEquals(600, loaded.getTimeout("a#test[HU_FF]"));
+    }
+}
@@ -0,0 +1,231 @@
+package datameer.webdriver.goodies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link FixtureServer}.
+ * @version $Revision:  $
+ */
+public class FixtureServerTest {
+    private File _root;
+    private FixtureServer _server;
+
+    @Before
+    public void startServer() throws IOException {
+        _root = File.createTempFile("fixtures", "");
+        _root.delete();
+        new File(_root, "sub").mkdirs();
+        FileUtils.writeStringToFile(new File(_root, "page.html"), "<html></html>", "ISO-8859-1");
+        FileUtils.writeStringToFile(new File(_root, "a+b.js"), "var a;", "ISO-8859-1");
+        FileUtils.writeStringToFile(new File(_root, "with space.txt"), "space", "ISO-8859-1");
+        FileUtils.writeStringToFile(new File(_root, "sub/index.html"), "index", "ISO-8859-1");
+        FileUtils.writeStringToFile(new File(_root.getParentFile(), _root.getName() + "-secret.txt"), "secret", "ISO-8859-1");
+
+        _server = new FixtureServer(_root, 0);
+        _server.start();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        _server.stop();
+        new File(_root.getParentFile(), _root.getName() + "-secret.txt").delete();
+        FileUtils.deleteDirectory(_root);
+    }
+
+    @Test
+    public void servesFile() throws IOException {
+        final String response = get("/page.html");
+        assertStatus(200, response);
+        assertTrue(response, response.contains("Content-Type: text/html\r\n"));
+        assertTrue(response, response.contains("Content-Length: 13\r\n"));
+        assertTrue(response, response.endsWith("\r\n\r\n<html></html>"));
+    }
+
+    @Test
+    public void headHasNoBody() throws IOException {
+        final String response = request("HEAD /page.html HTTP/1.0\r\n\r\n");
+        assertStatus(200, response);
+        assertTrue(response, response.contains("Content-Length: 13\r\n"));
+        assertTrue(response, response.endsWith("\r\n\r\n"));
+    }
+
+    @Test
+    public void decodesPath() throws IOException {
+        assertTrue(get("/a+b.js").endsWith("var a;"));
+        assertTrue(get("/a%2Bb.js").endsWith("var a;"));
+        assertTrue(get("/with%20space.txt").endsWith("space"));
+        assertTrue(get("/page.html?x=1+2").endsWith("<html></html>"));
+    }
+
+    @Test
+    public void servesIndexOfFolder() throws IOException {
+        assertTrue(get("/sub/").endsWith("index"));
+        assertTrue(get("/sub").endsWith("index"));
+    }
+
+    @Test
+    public void notFound() throws IOException {
+        assertStatus(404, get("/missing.html"));
+        assertStatus(404, get("/"));
+    }
+
+    @Test
+    public void doesntServeFilesOutsideOfRoot() throws IOException {
+        final String secret = _root.getName() + "-secret.txt";
+        assertStatus(404, get("/../" + secret));
+        assertStatus(404, get("/%2e%2e/" + secret));
+        assertStatus(404, get("/sub/../../" + secret));
+        assertStatus(404, get("/%00"));
+    }
+
+    @Test
+    public void malformedUriIsBadRequest() throws IOException {
+        assertStatus(400, get("/%zz"));
+        assertStatus(400, get("/100%"));
+        assertStatus(400, request("GET /page.html\r\n\r\n"));
+        // the server is still running
+        assertStatus(200, get("/page.html"));
+    }
+
+    @Test
+    public void tooLargeHeadIsRejected() throws IOException {
+        // fills exactly the 8192 bytes read by the server, a connection closed with unread data could be reset
+        final String start = "GET /page.html HTTP/1.1\r\nX-Large: ";
+        final char[] value = new char[8192 - start.length()];
+        Arrays.fill(value, 'x');
+        assertStatus(431, request(start + new String(value)));
+    }
+
+    @Test
+    public void unsupportedMethodClosesConnection() throws IOException {
+        // the body must not be read as a second request
+        final String response = request("POST /page.html HTTP/1.1\r\nContent-Length: 23\r\n\r\n"
+            + "GET /page.html HTTP/1.1");
+        assertStatus(405, response);
+        assertTrue(response, response.contains("Connection: close\r\n"));
+        assertEquals(response, 1, count(response, "HTTP/1.1 "));
+    }
+
+    @Test
+    public void keepsConnectionAlive() throws IOException {
+        final Socket socket = connect();
+        try {
+            final OutputStream os = socket.getOutputStream();
+            final InputStream is = socket.getInputStream();
+            os.write("GET /page.html HTTP/1.1\r\n\r\n".getBytes("ISO-8859-1"));
+            final String first = readResponse(is);
+            assertStatus(200, first);
+            assertTrue(first, first.contains("Connection: keep-alive\r\n"));
+
+            os.write("GET /sub/ HTTP/1.1\r\n\r\n".getBytes("ISO-8859-1"));
+            assertTrue(readResponse(is).endsWith("index"));
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void answersPipelinedRequestsInOrder() throws IOException {
+        final Socket socket = connect();
+        try {
+            socket.getOutputStream().write(("GET /page.html HTTP/1.1\r\n\r\n"
+                + "GET /missing HTTP/1.1\r\n\r\n"
+                + "GET /a+b.js HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+            final InputStream is = socket.getInputStream();
+            assertTrue(readResponse(is).endsWith("<html></html>"));
+            assertStatus(404, readResponse(is));
+            final String last = readResponse(is);
+            assertTrue(last, last.endsWith("var a;"));
+            assertTrue(last, last.contains("Connection: close\r\n"));
+            assertEquals(-1, is.read());
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void http10ClosesConnection() throws IOException {
+        final String response = request("GET /page.html HTTP/1.0\r\n\r\n");
+        assertStatus(200, response);
+        assertTrue(response, response.contains("Connection: close\r\n"));
+    }
+
+    private String get(final String path) throws IOException {
+        return request("GET " + path + " HTTP/1.1\r\nConnection: close\r\n\r\n");
+    }
+
+    /**
+     * Sends a request and reads until the server closes the connection.
+     */
+    private String request(final String request) throws IOException {
+        final Socket socket = connect();
+        try {
+            socket.getOutputStream().write(request.getBytes("ISO-8859-1"));
+            final InputStream is = socket.getInputStream();
+            final ByteArrayOutputStream response = new ByteArrayOutputStream();
+            int b;
+            while ((b = is.read()) != -1) {
+                response.write(b);
+            }
+            return response.toString("ISO-8859-1");
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    private Socket connect() throws IOException {
+        final Socket socket = new Socket("localhost", _server.getPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    /**
+     * Reads a single response, using its Content-Length.
+     */
+    private static String readResponse(final InputStream is) throws IOException {
+        final StringBuilder head = new StringBuilder();
+        while (head.length() < 4 || !head.substring(head.length() - 4).equals("\r\n\r\n")) {
+            final int b = is.read();
+            if (b == -1) {
+                throw new IOException("Connection closed after: " + head);
+            }
+            head.append((char) b);
+        }
+        final int start = head.indexOf("Content-Length: ") + "Content-Length: ".length();
+        final int length = Integer.parseInt(head.substring(start, head.indexOf("\r\n", start)));
+        final StringBuilder response = new StringBuilder(head);
+        for (int i = 0; i < length; ++i) {
+            response.append((char) is.read());
+        }
+        return response.toString();
+    }
+
+    private static void assertStatus(final int status, final String response) {
+        assertTrue(response, response.startsWith("HTTP/1.1 " + status + " "));
+    }
+
+    private static int count(final String text, final String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i != -1; i = text.indexOf(part, i + 1)) {
+            ++count;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,70 @@
+package datameer.webdriver.goodies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link LogRingBuffer}.
+ * @version $Revision:  $
+ */
+public class LogRingBufferTest {
+
+    @Test
+    public void keepsContentUntilFull() {
+        final LogRingBuffer buffer = new LogRingBuffer(16);
+        assertTrue(buffer.isEmpty());
+        assertEquals("", buffer.toString());
+
+        buffer.append("line 1\n").append("line 2\n");
+        assertFalse(buffer.isEmpty());
+        assertEquals("line 1\nline 2\n", buffer.toString());
+    }
+
+    @Test
+    public void dropsOldestEntriesWhenWrapped() {
+        final LogRingBuffer buffer = new LogRingBuffer(16);
+        buffer.append("first\n").append("second\n").append("third\n");
+        // the beginning of "first\n" has been overwritten, the rest of it is skipped
+        assertEquals("[older log entries dropped]\nsecond\nthird\n", buffer.toString());
+    }
+
+    @Test
+    public void wrapsExactlyAtEndOfEntry() {
+        final LogRingBuffer buffer = new LogRingBuffer(8);
+        buffer.append("abc\n").append("def\n").append("ghi\n");
+        assertEquals("[older log entries dropped]\nghi\n", buffer.toString());
+    }
+
+    @Test
+    public void resetKeepsCapacity() {
+        final LogRingBuffer buffer = new LogRingBuffer(8);
+        buffer.append("abcdefghij\n");
+        buffer.reset();
+        assertTrue(buffer.isEmpty());
+        assertEquals(8, buffer.getCapacity());
+        buffer.append("x\n");
+        assertEquals("x\n", buffer.toString());
+    }
+
+    @Test
+    public void appendsNumbers() {
+        final LogRingBuffer buffer = new LogRingBuffer(100);
+        buffer.append(0).append(' ').append(42).append(' ').append(-7).append(' ').append(Long.MIN_VALUE);
+        assertEquals("0 42 -7 " + Long.MIN_VALUE, buffer.toString());
+    }
+
+    @Test
+    public void appendsNull() {
+        final LogRingBuffer buffer = new LogRingBuffer(10);
+        buffer.append((CharSequence) null);
+        assertEquals("null", buffer.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidCapacity() {
+        new LogRingBuffer(0);
+    }
+}
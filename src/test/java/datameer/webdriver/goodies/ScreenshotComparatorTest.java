@@ -0,0 +1,86 @@
+package datameer.webdriver.goodies;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import datameer.webdriver.goodies.ScreenshotComparator.Result;
+
+/**
+ * Tests for {@link ScreenshotComparator}.
+ * @version $Revision:  $
+ */
+public class ScreenshotComparatorTest {
+    private final ScreenshotComparator _comparator = new ScreenshotComparator(2, 16, 0);
+
+    @Test
+    public void identicalImages() {
+        final int[] pixels = createPixels(40, 30, 0x123456);
+        final Result result = _comparator.compare(pixels, pixels.clone(), 40, 30);
+        assertTrue(result.isIdentical());
+        assertFalse(result.isNewBaseline());
+        assertEquals(1200, result.getComparedPixels());
+        assertNull(result.getDiffImage());
+    }
+
+    @Test
+    public void countsPixelsOutsideOfIgnoredRegions() {
+        final int[] pixels = createPixels(40, 30, 0x123456);
+        // 10x10, overlapping the first one on 5x5, partially outside of the image (10x5 inside) and empty
+        final Result result = _comparator.compare(pixels, pixels.clone(), 40, 30,
+            new Rectangle(0, 0, 10, 10), new Rectangle(5, 5, 10, 10), new Rectangle(35, 25, 20, 20),
+            new Rectangle(20, 20, 0, 5));
+        assertTrue(result.isIdentical());
+        assertEquals(1200 - 100 - 75 - 25, result.getComparedPixels());
+    }
+
+    @Test
+    public void countsMismatches() {
+        final int[] expected = createPixels(40, 30, 0x123456);
+        final int[] actual = expected.clone();
+        actual[0] = 0xFFFFFF;
+        actual[40 * 29 + 39] = 0xFFFFFF;
+        // ignored mismatch
+        actual[40 * 15 + 20] = 0xFFFFFF;
+        final Result result = _comparator.compare(expected, actual, 40, 30, new Rectangle(20, 15, 1, 1));
+        assertFalse(result.isIdentical());
+        assertEquals(2, result.getMismatchingPixels());
+        assertEquals(1199, result.getComparedPixels());
+        assertEquals(2.0 / 1199, result.getMismatchRatio(), 1e-9);
+
+        final BufferedImage diff = result.getDiffImage();
+        assertNotNull(diff);
+        assertEquals(0xFF0000, diff.getRGB(0, 0) & 0xFFFFFF);
+        assertEquals(0x8080FF, diff.getRGB(20, 15) & 0xFFFFFF);
+    }
+
+    @Test
+    public void tolerance() {
+        final int[] expected = createPixels(20, 20, 0x808080);
+        final int[] actual = createPixels(20, 20, 0x828082);
+        assertFalse(_comparator.compare(expected, actual, 20, 20).isIdentical());
+        assertTrue(new ScreenshotComparator(1, 16, 2).compare(expected, actual, 20, 20).isIdentical());
+    }
+
+    @Test
+    public void sizeMismatch() {
+        final Result result = _comparator.compare(new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB),
+            new BufferedImage(10, 11, BufferedImage.TYPE_INT_RGB));
+        assertTrue(result.isSizeMismatch());
+        assertFalse(result.isIdentical());
+    }
+
+    private static int[] createPixels(final int width, final int height, final int rgb) {
+        final int[] pixels = new int[width * height];
+        Arrays.fill(pixels, rgb);
+        return pixels;
+    }
+}